@@ -0,0 +1,59 @@
+package bench;
+
+import inc.Log;
+import model.VideoMetadata;
+import org.openjdk.jmh.annotations.*;
+import protocol.Protocol;
+import server.CentralVideoServer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Catalog lookups on a catalog of Fixtures.CATALOG_SIZE videos: by id as a STREAM does, and one page of a sorted
+// query as CATALOG_QUERY does, going through the four orders in turn
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogBenchmark {
+    private static final int PAGE_SIZE = 50;
+    private static final byte[] SORTS = { Protocol.SORT_TITLE, Protocol.SORT_SIZE, Protocol.SORT_DURATION, Protocol.SORT_RECENT };
+
+    private Path mediaRoot;
+    private CentralVideoServer centralServer;
+    private String[] ids;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        mediaRoot = Fixtures.mediaRoot();
+        Fixtures.catalogTree(mediaRoot);
+        centralServer = new CentralVideoServer(mediaRoot);
+        centralServer.addDirectoryPath(Fixtures.CATALOG_DIRECTORY, Fixtures.MEDIA_TYPE);
+        ids = centralServer.getAllAvailableVideos().stream().map(VideoMetadata::getId).toArray(String[]::new);
+    }
+
+    @Benchmark
+    public VideoMetadata getVideo() {
+        return centralServer.getVideo(ids[next++ % ids.length]);
+    }
+
+    @Benchmark
+    public List<VideoMetadata> page() {
+        int i = next++;
+        List<VideoMetadata> view = centralServer.query(SORTS[i % SORTS.length], "", "");
+        int pages = (view.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+        int from = (i % pages) * PAGE_SIZE;
+        return view.subList(from, Math.min(view.size(), from + PAGE_SIZE));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(mediaRoot);
+    }
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import inc.CSVReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// CSVReader.importConfig of the server configuration into an object with the server's fields, from the project directory
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+    @Param({ "etc/config/server.csv" })
+    public String config;
+
+    @Benchmark
+    public int importConfig() {
+        ServerSettings settings = new ServerSettings();
+        CSVReader.importConfig(config, settings);
+        return settings.port;
+    }
+
+    // The fields of server.csv, set by reflection
+    @SuppressWarnings("unused")
+    private static final class ServerSettings {
+        private String media_type;
+        private int port;
+        private int chunk_size;
+        private int max_buffer_seconds;
+        private String media_root;
+        private String[] video_directories;
+        private boolean zero_copy;
+        private int event_loops;
+        private int worker_threads;
+        private int worker_queue_size;
+        private long initial_credit_bytes;
+        private long cache_budget_bytes;
+        private int segment_size;
+        private int index_cache_entries;
+        private boolean keyframe_segments;
+        private double segment_seconds;
+        private int min_chunk_size;
+        private int max_chunk_size;
+        private double hot_fraction;
+        private int hot_replicas;
+        private long popularity_half_life_seconds;
+        private long egress_rate_bytes;
+        private long session_rate_bytes;
+        private double low_buffer_seconds;
+        private double low_buffer_weight;
+        private int max_streams;
+        private double admission_egress_fraction;
+        private double max_file_descriptor_fraction;
+        private int max_pending_segment_loads;
+        private long admission_queue_millis;
+        private int max_queued_streams;
+        private int busy_retry_millis;
+        private String log_level;
+    }
+}
@@ -0,0 +1,67 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Media generated for the benchmarks in a temporary media root, away from the etc/media the servers watch: the same
+// bytes and names on every run so that results compare across commits. The benchmark deletes the root when done.
+final class Fixtures {
+    static final String STREAM_DIRECTORY = "stream";
+    static final String CATALOG_DIRECTORY = "catalog";
+    static final String MEDIA_TYPE = ".mp4";
+    static final long VIDEO_SIZE = 64L * 1024 * 1024;
+    static final int CATALOG_SIZE = 10_000;
+    private static final int CATALOG_FOLDERS = 100;
+
+    private Fixtures() {
+    }
+
+    static Path mediaRoot() throws IOException {
+        return Files.createTempDirectory("bench-media");
+    }
+
+    // One video of VIDEO_SIZE seeded random bytes
+    static Path video(Path mediaRoot) throws IOException {
+        Path file = mediaRoot.resolve(STREAM_DIRECTORY).resolve("video" + MEDIA_TYPE);
+        Files.createDirectories(file.getParent());
+        Random random = new Random(42);
+        byte[] block = new byte[1024 * 1024];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < VIDEO_SIZE; written += block.length) {
+                random.nextBytes(block);
+                ByteBuffer buffer = ByteBuffer.wrap(block);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+        return file;
+    }
+
+    // CATALOG_SIZE empty videos spread over CATALOG_FOLDERS folders, what matters to the catalog is the files themselves
+    static Path catalogTree(Path mediaRoot) throws IOException {
+        Path root = mediaRoot.resolve(CATALOG_DIRECTORY);
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            Path file = root.resolve(String.format("folder%03d", i % CATALOG_FOLDERS)).resolve(String.format("video%05d%s", i, MEDIA_TYPE));
+            Files.createDirectories(file.getParent());
+            Files.createFile(file);
+        }
+        return root;
+    }
+
+    static void delete(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
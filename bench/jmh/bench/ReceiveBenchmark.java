@@ -0,0 +1,74 @@
+package bench;
+
+import client.ByteRanges;
+import client.ChunkBatch;
+import org.openjdk.jmh.annotations.*;
+import protocol.FrameReader;
+import protocol.FrameWriter;
+import protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The client side of a stream without the network: frames decoded from memory, gathered by ChunkBatch and written
+// to a video file as the client does. The parameter is the chunk size the frames were cut to.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveBenchmark {
+    private static final int STREAM_SIZE = 32 * 1024 * 1024;
+    private static final int BATCH_SIZE = 1024 * 1024; // as the client's
+
+    @Param({ "1024", "16384", "262144" })
+    public int chunkSize;
+
+    private byte[] frames;
+    private Path file;
+    private FileChannel channel;
+    private final ChunkBatch batch = new ChunkBatch(BATCH_SIZE);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] chunk = new byte[chunkSize];
+        new Random(42).nextBytes(chunk);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(STREAM_SIZE + STREAM_SIZE / chunkSize * Protocol.HEADER_SIZE + 64);
+        FrameWriter writer = new FrameWriter(stream);
+        for (int sent = 0; sent < STREAM_SIZE; sent += chunkSize) {
+            writer.chunk(chunk, 0, chunkSize);
+        }
+        writer.signal(Protocol.VIDEO_END);
+        frames = stream.toByteArray();
+        file = Files.createTempFile("bench-receive", ".mp4");
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // One operation is the whole stream
+    @Benchmark
+    public long receive(Bytes bytes) throws IOException {
+        FrameReader in = new FrameReader(new ByteArrayInputStream(frames));
+        ByteRanges ranges = new ByteRanges();
+        batch.open(channel, ranges, 0);
+        while (in.next() == Protocol.VIDEO_CHUNK) {
+            batch.receive(in, in.length());
+        }
+        batch.flush();
+        bytes.bytes += STREAM_SIZE;
+        return ranges.total();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+}
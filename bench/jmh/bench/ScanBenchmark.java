@@ -0,0 +1,49 @@
+package bench;
+
+import inc.Log;
+import org.openjdk.jmh.annotations.*;
+import server.ChildVideoServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// A storage directory of Fixtures.CATALOG_SIZE videos scanned by ChildVideoServer: cold without its catalog index
+// (every file examined), indexed with the index of the previous scan (unchanged files reused)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+    private static final String INDEX_FILE = ".catalog.tsv";
+
+    private Path mediaRoot;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        mediaRoot = Fixtures.mediaRoot();
+        directory = Fixtures.catalogTree(mediaRoot);
+        new ChildVideoServer(directory, Fixtures.MEDIA_TYPE); // leaves an index for the indexed scans
+    }
+
+    @Benchmark
+    public int cold() throws IOException {
+        Files.deleteIfExists(directory.resolve(INDEX_FILE));
+        return new ChildVideoServer(directory, Fixtures.MEDIA_TYPE).getAvailableVideos().size();
+    }
+
+    @Benchmark
+    public int indexed() {
+        return new ChildVideoServer(directory, Fixtures.MEDIA_TYPE).getAvailableVideos().size();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(mediaRoot);
+    }
+}
@@ -0,0 +1,133 @@
+package bench;
+
+import model.VideoMetadata;
+import org.openjdk.jmh.annotations.*;
+import protocol.FrameReader;
+import protocol.FrameWriter;
+import protocol.Protocol;
+import server.VideoStreamingServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The server's chunk loop end to end over loopback: a real server streams the fixture video to a client granting
+// all the credit at once, so the loop runs as fast as the socket takes it. The parameter pins the chunk size.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+    @Param({ "1024", "16384", "262144" })
+    public int chunkSize;
+
+    private Path mediaRoot;
+    private VideoStreamingServer server;
+    private Socket socket;
+    private FrameWriter out;
+    private FrameReader in;
+    private String videoId;
+    private byte[] buffer = new byte[0];
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        mediaRoot = Fixtures.mediaRoot();
+        Fixtures.video(mediaRoot);
+        int port = freePort();
+        // min = max: the chunk size does not adapt during the measure
+        Path config = Files.createTempFile("bench-server", ".csv");
+        Files.writeString(config, String.join("\r\n",
+                "media_type=" + Fixtures.MEDIA_TYPE + ";",
+                "port=" + port + ";",
+                "chunk_size=" + chunkSize + ";",
+                "min_chunk_size=" + chunkSize + ";",
+                "max_chunk_size=" + chunkSize + ";",
+                "max_buffer_seconds=100;",
+                "media_root=" + mediaRoot + ";",
+                "video_directories=" + Fixtures.STREAM_DIRECTORY + ";",
+                "zero_copy=true;",
+                "event_loops=1;",
+                "cache_budget_bytes=0;",
+                "log_level=WARN;"), StandardCharsets.UTF_8);
+        server = new VideoStreamingServer(config.toString());
+        Files.delete(config);
+        Thread thread = new Thread(server::start, "bench-server-" + chunkSize);
+        thread.setDaemon(true); // blocked in accept until the fork exits
+        thread.start();
+
+        socket = connect(port);
+        out = new FrameWriter(socket.getOutputStream());
+        in = new FrameReader(socket.getInputStream());
+        out.hello();
+        in.expectHello();
+        out.catalogQuery(0, 10, Protocol.SORT_TITLE, "", "");
+        while (in.next() != Protocol.CATALOG_PAGE) {
+            in.skipPayload();
+        }
+        in.readInt();
+        in.readInt();
+        List<VideoMetadata> videos = in.readVideos();
+        videoId = videos.get(0).getId();
+    }
+
+    // One operation is the whole video
+    @Benchmark
+    public long stream(Bytes bytes) throws IOException {
+        out.stream(videoId, 0);
+        out.playback(1e9, 1);
+        long received = 0;
+        while (true) {
+            switch (in.next()) {
+                case Protocol.VIDEO_CHUNK -> {
+                    int length = in.length();
+                    if (length > buffer.length) {
+                        buffer = new byte[length];
+                    }
+                    in.readFully(buffer, 0, length);
+                    received += length;
+                }
+                case Protocol.PING -> out.pong(in.readLong());
+                case Protocol.VIDEO_END -> {
+                    bytes.bytes += received;
+                    return received + buffer[0];
+                }
+                case Protocol.VIDEO_ERROR -> throw new IOException(in.readString());
+                default -> in.skipPayload();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        out.exit(false);
+        socket.close();
+        server.shutdown();
+        Fixtures.delete(mediaRoot);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static Socket connect(int port) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                if (attempt >= 50) {
+                    throw e;
+                }
+                Thread.sleep(100); // the server is still scanning its directories
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package bench;
+
+import inc.CSVReader;
+import protocol.FrameReader;
+import protocol.FrameWriter;
+import protocol.Protocol;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Capacity test: ramps up simulated viewers against a running server, one more at a time up to `sessions`, and
+// reports every few seconds how many are active, the throughput they receive, their time to first byte and their
+// stalls, next to the server's own numbers (STATS). The step where throughput stops growing with the sessions, or
+// time to first byte and stalls take off, is the saturation point.
+//   gradle loadTest [-PloadConfig=etc/config/load.csv]
+public class LoadGenerator {
+    private static final long REPORT_INTERVAL_MILLIS = 5000;
+    private static final long TICK_MILLIS = 100; // resolution of the synthetic playback clocks
+
+    // Settings, from the load configuration file
+    static final class Settings {
+        String server_host = "localhost";
+        int server_port = 8888;
+        int sessions = 100;
+        int ramp_seconds = 60; // time to reach all the sessions
+        int duration_seconds = 120; // whole test, ramp included
+        long bitrate_bytes = 500_000; // playback speed of the videos whose duration is unknown, in bytes per second
+        double preroll_seconds = 2; // media buffered before playing, and again after a stall
+        int video_seconds = 30; // watched of each video before the next one
+        double seek_probability = 0.2; // chance that a viewer seeks once per video
+    }
+
+    // Shared by the simulated clients, read by the reports
+    static final class Results {
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong stalls = new AtomicLong();
+        private final AtomicLong seeks = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong refusals = new AtomicLong(); // BUSY answers
+        private final List<Long> firstBytes = new ArrayList<>(); // nanos, guarded by itself
+
+        void sessionStarted() {
+            active.incrementAndGet();
+        }
+
+        void sessionEnded() {
+            active.decrementAndGet();
+        }
+
+        void received(int length) {
+            bytes.addAndGet(length);
+        }
+
+        void firstByte(long nanos) {
+            synchronized (firstBytes) {
+                firstBytes.add(nanos);
+            }
+        }
+
+        void stall() {
+            stalls.incrementAndGet();
+        }
+
+        void seek() {
+            seeks.incrementAndGet();
+        }
+
+        void busy() {
+            refusals.incrementAndGet();
+        }
+
+        void failed(IOException e) {
+            if (failures.incrementAndGet() <= 10) {
+                System.out.println("Session failed: " + e.getMessage());
+            }
+        }
+
+        // Percentile of the times to first byte in ms, over the streams started since `from`
+        double firstByteMillis(int from, double fraction) {
+            List<Long> sorted;
+            synchronized (firstBytes) {
+                sorted = new ArrayList<>(firstBytes.subList(Math.min(from, firstBytes.size()), firstBytes.size()));
+            }
+            if (sorted.isEmpty()) {
+                return 0;
+            }
+            Collections.sort(sorted);
+            return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(fraction * sorted.size()) - 1)) / 1e6;
+        }
+
+        int firstByteCount() {
+            synchronized (firstBytes) {
+                return firstBytes.size();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = new Settings();
+        CSVReader.importConfig(args.length > 0 ? args[0] : "etc/config/load.csv", settings);
+        Results results = new Results();
+
+        List<SimulatedClient> clients = new CopyOnWriteArrayList<>();
+        ScheduledExecutorService ticker = Executors.newScheduledThreadPool(2, daemon("load-ticker"));
+        ticker.scheduleAtFixedRate(() -> clients.forEach(SimulatedClient::tick), TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        ThreadFactory viewers = daemon("viewer");
+
+        System.out.printf("%6s %8s %10s %10s %10s %8s %8s %8s %8s  %s%n", "time", "sessions", "MB/s", "ttfb p50", "ttfb p99", "stalls", "seeks", "busy", "failed", "server");
+        long start = System.nanoTime();
+        long rampNanos = Math.max(1, settings.ramp_seconds) * 1_000_000_000L;
+        long end = start + settings.duration_seconds * 1_000_000_000L;
+        long nextReport = start + REPORT_INTERVAL_MILLIS * 1_000_000;
+        long reportedBytes = 0;
+        int reportedFirstBytes = 0;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            // linear ramp: the session count due by now
+            int due = (int) Math.min(settings.sessions, (long) settings.sessions * (now - start) / rampNanos + 1);
+            while (clients.size() < due) {
+                SimulatedClient client = new SimulatedClient(settings, results, clients.size());
+                clients.add(client);
+                viewers.newThread(client::run).start();
+            }
+            if (now >= nextReport) {
+                long bytes = results.bytes.get();
+                int firstBytes = results.firstByteCount();
+                System.out.printf("%5ds %8d %10.1f %8.0fms %8.0fms %8d %8d %8d %8d  %s%n", (now - start) / 1_000_000_000L, results.active.get(),
+                        (bytes - reportedBytes) / 1e6 / (REPORT_INTERVAL_MILLIS / 1000.0),
+                        results.firstByteMillis(reportedFirstBytes, 0.5), results.firstByteMillis(reportedFirstBytes, 0.99),
+                        results.stalls.get(), results.seeks.get(), results.refusals.get(), results.failures.get(), serverSummary(settings));
+                reportedBytes = bytes;
+                reportedFirstBytes = firstBytes;
+                nextReport += REPORT_INTERVAL_MILLIS * 1_000_000;
+            }
+            Thread.sleep(10);
+        }
+
+        clients.forEach(SimulatedClient::stop);
+        ticker.shutdownNow();
+        System.out.printf("Overall: %d sessions, %.1f MB received, time to first byte p50 %.0f ms p99 %.0f ms, %d stalls, %d seeks, %d busy, %d failed%n",
+                clients.size(), results.bytes.get() / 1e6, results.firstByteMillis(0, 0.5), results.firstByteMillis(0, 0.99),
+                results.stalls.get(), results.seeks.get(), results.refusals.get(), results.failures.get());
+        Map<String, Double> stats = serverStats(settings);
+        if (stats != null) {
+            System.out.println("Server:");
+            stats.forEach((name, value) -> {
+                if (!name.startsWith("session.")) {
+                    System.out.printf("  %-28s %.1f%n", name, value);
+                }
+            });
+        }
+    }
+
+    private static String serverSummary(Settings settings) {
+        Map<String, Double> stats = serverStats(settings);
+        if (stats == null) {
+            return "-";
+        }
+        return String.format("egress=%.1fMB/s chunk p99=%.0fus credit stalls=%.0f cpu=%.0f%% heap=%.0fMB threads=%.0f",
+                stats.getOrDefault("egress_bytes_per_second", 0.0) / 1e6, stats.getOrDefault("chunk_latency_p99_us", 0.0),
+                stats.getOrDefault("credit_stalls", 0.0), stats.getOrDefault("process_cpu_load", 0.0) * 100,
+                stats.getOrDefault("heap_used_bytes", 0.0) / 1e6, stats.getOrDefault("threads", 0.0));
+    }
+
+    // The server's STATS, on a connection of its own, null if it cannot be reached
+    private static Map<String, Double> serverStats(Settings settings) {
+        try (Socket socket = new Socket(settings.server_host, settings.server_port)) {
+            FrameWriter out = new FrameWriter(socket.getOutputStream());
+            FrameReader in = new FrameReader(socket.getInputStream());
+            out.hello();
+            in.expectHello();
+            out.signal(Protocol.STATS);
+            while (in.next() != Protocol.STATS_REPLY) {
+                in.skipPayload();
+            }
+            Map<String, Double> stats = in.readStats();
+            out.exit(false);
+            return stats;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
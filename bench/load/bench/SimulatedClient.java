@@ -0,0 +1,229 @@
+package bench;
+
+import model.VideoMetadata;
+import protocol.FrameReader;
+import protocol.FrameWriter;
+import protocol.Protocol;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.Random;
+
+// A viewer without a window: speaks the client's protocol and plays with a synthetic clock instead of a media player.
+// Playback starts once the pre-roll is there, advances in real time, and stalls when it catches up with what has
+// arrived. Progress is reported with PLAYBACK like the real client, which is what grants the server its credit.
+class SimulatedClient {
+    private static final double REPORT_INTERVAL = 1; // seconds between two PLAYBACK reports, as the client
+
+    private final LoadGenerator.Settings settings;
+    private final LoadGenerator.Results results;
+    private final Random random;
+    private Socket socket;
+    private FrameWriter out;
+    private volatile boolean running = true;
+
+    // current video, guarded by this
+    private VideoMetadata video;
+    private double totalTime;
+    private long requestedAt;
+    private boolean started; // VIDEO_START received, chunks before it are the tail of the previous video
+    private boolean firstByte;
+    private long bufferedEnd; // offset up to which the bytes arrived (from the start or the last seek)
+    private double playhead; // seconds
+    private boolean playing;
+    private boolean seekPlanned;
+    private double seekAt; // playback time of the planned seek
+    private long startedAt;
+    private long lastTick;
+    private long lastReport;
+
+    SimulatedClient(LoadGenerator.Settings settings, LoadGenerator.Results results, long seed) {
+        this.settings = settings;
+        this.results = results;
+        this.random = new Random(seed);
+    }
+
+    // Connects and watches videos one after the other until stop, on the calling thread
+    void run() {
+        try (Socket connection = new Socket(settings.server_host, settings.server_port)) {
+            socket = connection;
+            out = new FrameWriter(connection.getOutputStream());
+            FrameReader in = new FrameReader(connection.getInputStream());
+            out.hello();
+            in.expectHello();
+            out.catalogQuery(0, 500, Protocol.SORT_TITLE, "", "");
+            List<VideoMetadata> catalog = null;
+            while (catalog == null) {
+                if (in.next() == Protocol.CATALOG_PAGE) {
+                    in.readInt();
+                    in.readInt();
+                    catalog = in.readVideos();
+                } else {
+                    in.skipPayload();
+                }
+            }
+            if (catalog.isEmpty()) {
+                throw new IOException("empty catalog");
+            }
+            results.sessionStarted();
+            while (running) {
+                play(catalog.get(random.nextInt(catalog.size())));
+                receive(in);
+            }
+            out.exit(false);
+        } catch (IOException e) {
+            if (running) {
+                results.failed(e);
+            }
+        } finally {
+            results.sessionEnded();
+        }
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private synchronized void play(VideoMetadata next) throws IOException {
+        video = next;
+        totalTime = video.getDuration() > 0 ? video.getDuration() : (double) video.getFileSize() / settings.bitrate_bytes;
+        requestedAt = System.nanoTime();
+        started = false;
+        firstByte = false;
+        bufferedEnd = 0;
+        playhead = 0;
+        playing = false;
+        seekPlanned = random.nextDouble() < settings.seek_probability;
+        seekAt = random.nextDouble() * totalTime / 2;
+        startedAt = lastTick = lastReport = System.nanoTime();
+        out.stream(video.getId(), 0);
+    }
+
+    // Frames of the current video until it has been watched (or the session stopped)
+    private void receive(FrameReader in) throws IOException {
+        while (running) {
+            switch (in.next()) {
+                case Protocol.VIDEO_START -> {
+                    in.readString();
+                    in.readString();
+                    in.readLong();
+                    synchronized (this) {
+                        bufferedEnd = in.readLong();
+                        started = true;
+                    }
+                }
+                case Protocol.VIDEO_CHUNK -> {
+                    int length = in.length();
+                    in.skipPayload();
+                    received(length);
+                }
+                case Protocol.VIDEO_SEEK -> {
+                    long offset = in.readLong();
+                    synchronized (this) {
+                        bufferedEnd = offset;
+                        playhead = offset / bytesPerSecond();
+                        playing = false;
+                    }
+                }
+                case Protocol.PING -> out.pong(in.readLong());
+                case Protocol.VIDEO_ERROR -> throw new IOException(in.readString());
+                case Protocol.BUSY -> {
+                    int retryAfter = in.readInt();
+                    in.readString();
+                    results.busy();
+                    retry(retryAfter);
+                }
+                case Protocol.VIDEO_END -> waitUntilWatched(); // everything arrived, the viewer still watches the rest
+                default -> in.skipPayload();
+            }
+            if (watched()) {
+                out.exit(true);
+                return;
+            }
+        }
+    }
+
+    // Refused: asks again for the same video after the delay, the time to first byte counting from the first request
+    private void retry(int retryAfterMillis) throws IOException {
+        try {
+            Thread.sleep(retryAfterMillis);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        }
+        synchronized (this) {
+            startedAt = lastTick = lastReport = System.nanoTime();
+            out.stream(video.getId(), 0);
+        }
+    }
+
+    private synchronized void received(int length) {
+        results.received(length);
+        if (!started) {
+            return;
+        }
+        if (!firstByte) {
+            firstByte = true;
+            results.firstByte(System.nanoTime() - requestedAt);
+        }
+        bufferedEnd += length;
+    }
+
+    private void waitUntilWatched() throws IOException {
+        try {
+            while (running && !watched()) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        }
+    }
+
+    private synchronized boolean watched() {
+        return playhead >= totalTime || System.nanoTime() - startedAt >= settings.video_seconds * 1_000_000_000L;
+    }
+
+    // Advances the synthetic player, called every few milliseconds by the load generator's ticker
+    synchronized void tick() {
+        if (video == null || out == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        double elapsed = (now - lastTick) / 1e9;
+        lastTick = now;
+        long size = video.getFileSize();
+        long playheadOffset = (long) (playhead * bytesPerSecond());
+        if (playing) {
+            playhead = Math.min(totalTime, playhead + elapsed);
+            if (playhead * bytesPerSecond() >= bufferedEnd && bufferedEnd < size) {
+                playing = false;
+                results.stall();
+            }
+        } else if (bufferedEnd - playheadOffset >= settings.preroll_seconds * bytesPerSecond() || bufferedEnd >= size) {
+            playing = true;
+        }
+        try {
+            if (seekPlanned && playhead >= seekAt) {
+                seekPlanned = false;
+                out.seek((long) (random.nextDouble() * size));
+                results.seek();
+            }
+            if ((now - lastReport) / 1e9 >= REPORT_INTERVAL) {
+                lastReport = now;
+                out.playback(playhead, totalTime);
+            }
+        } catch (IOException e) {
+            // the reader sees the connection fail too
+        }
+    }
+
+    private double bytesPerSecond() {
+        return video.getFileSize() / totalTime;
+    }
+}
@@ -0,0 +1,62 @@
+package client;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// Byte ranges of a video already written to the local file, kept merged: start -> end (exclusive)
+public class ByteRanges {
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    public synchronized void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        // absorb the ranges overlapping or touching [start, end)
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+        }
+        ranges.put(start, end);
+    }
+
+    public synchronized boolean contains(long offset) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(offset);
+        return range != null && offset < range.getValue();
+    }
+
+    // End of the downloaded run starting at offset, offset itself when that byte is missing
+    public synchronized long contiguousEnd(long offset) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(offset);
+        return range != null && offset < range.getValue() ? range.getValue() : offset;
+    }
+
+    // First missing byte at or after offset, `size` when everything from offset on is there
+    public synchronized long nextMissing(long offset, long size) {
+        return Math.min(size, contiguousEnd(offset));
+    }
+
+    // First downloaded byte after offset, `size` when nothing further is there
+    public synchronized long nextPresent(long offset, long size) {
+        Long start = ranges.higherKey(offset);
+        return start == null ? size : Math.min(size, start);
+    }
+
+    // Copy of the ranges, start -> end
+    public synchronized Map<Long, Long> toMap() {
+        return new TreeMap<>(ranges);
+    }
+
+    public synchronized long total() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+        return total;
+    }
+}
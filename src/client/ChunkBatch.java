@@ -0,0 +1,81 @@
+package client;
+
+import protocol.FrameReader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+// Consecutive chunks of a stream gathered in one buffer, reused for the whole session, and written to the video's
+// file with a single positional write once it is full or the stream moves. Written bytes are added to the ranges.
+public class ChunkBatch {
+    private ByteBuffer buffer;
+    private FileChannel file;
+    private ByteRanges ranges;
+    private long batchOffset; // file offset of the first byte of the buffer
+    private long writeOffset; // where the next chunk goes
+
+    public ChunkBatch(int size) {
+        buffer = ByteBuffer.allocate(size);
+    }
+
+    // The following chunks belong to this file, from offset on (what was gathered for the previous file is dropped)
+    public void open(FileChannel file, ByteRanges ranges, long offset) {
+        this.file = file;
+        this.ranges = ranges;
+        buffer.clear();
+        writeOffset = batchOffset = offset;
+    }
+
+    // Reads the payload of a VIDEO_CHUNK into the batch, true if the batch had to be written first to make room
+    public boolean receive(FrameReader in, int length) throws IOException {
+        boolean written = false;
+        if (length > buffer.remaining()) {
+            written = flush();
+            if (length > buffer.capacity()) {
+                buffer = ByteBuffer.allocate(length);
+            }
+        }
+        in.readFully(buffer.array(), buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        writeOffset += length;
+        return written;
+    }
+
+    // Writes what was gathered, true if anything was
+    public boolean flush() throws IOException {
+        FileChannel target = file;
+        if (buffer.position() == 0 || target == null) {
+            buffer.clear();
+            batchOffset = writeOffset;
+            return false;
+        }
+        buffer.flip();
+        long position = batchOffset;
+        boolean written = false;
+        try {
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+            ranges.add(batchOffset, position);
+            written = true;
+        } catch (ClosedChannelException e) {
+            // the video was closed meanwhile, what is left of it is dropped
+        }
+        buffer.clear();
+        batchOffset = writeOffset;
+        return written;
+    }
+
+    // The stream continues at another offset: what was gathered is written where it belongs first
+    public boolean moveTo(long offset) throws IOException {
+        boolean written = flush();
+        writeOffset = batchOffset = offset;
+        return written;
+    }
+
+    public long getWriteOffset() {
+        return writeOffset;
+    }
+}
@@ -0,0 +1,193 @@
+package client;
+
+import inc.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Videos downloaded by this client, kept on disk between sessions. A video is stored under its stable id and size,
+// next to the list of byte ranges it holds, so a partial download resumes where it stopped and a video watched
+// again is not fetched twice. Once over the byte budget, the least recently opened videos are deleted, never one
+// still open.
+public class MediaCache {
+    private static final String RANGES_SUFFIX = ".ranges";
+
+    private final Path directory;
+    private final long budgetBytes;
+    // least recently opened first: the files of earlier sessions by modification time, then in the order opened
+    private final LinkedHashSet<Path> opened = new LinkedHashSet<>(); // guarded by this
+    private final Map<Path, Integer> openCounts = new HashMap<>(); // guarded by this
+
+    public MediaCache(Path directory, long budgetBytes) throws IOException {
+        this.directory = directory;
+        this.budgetBytes = budgetBytes;
+        Files.createDirectories(directory);
+        List<Path> files = videoFiles();
+        files.sort(Comparator.comparingLong(MediaCache::lastModified));
+        opened.addAll(files);
+    }
+
+    // A cached video opened for playing and downloading
+    public static final class Entry {
+        private final Path file;
+        private final Path rangesFile;
+        private final FileChannel channel;
+        private final ByteRanges ranges;
+
+        private Entry(Path file, Path rangesFile, FileChannel channel, ByteRanges ranges) {
+            this.file = file;
+            this.rangesFile = rangesFile;
+            this.channel = channel;
+            this.ranges = ranges;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        public ByteRanges getRanges() {
+            return ranges;
+        }
+    }
+
+    // The file of the video, created at its final size if it is not cached yet
+    public synchronized Entry open(String videoId, long fileSize, String suffix) throws IOException {
+        Path file = directory.resolve(key(videoId, fileSize) + suffix);
+        Path rangesFile = directory.resolve(key(videoId, fileSize) + RANGES_SUFFIX);
+        ByteRanges ranges = Files.exists(file) ? loadRanges(rangesFile, fileSize) : new ByteRanges();
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < fileSize) {
+            // allocated once at its final size rather than grown chunk after chunk
+            channel.write(ByteBuffer.allocate(1), fileSize - 1);
+        }
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis())); // ordered by it next session
+        opened.remove(file);
+        opened.add(file);
+        openCounts.merge(file, 1, Integer::sum);
+        evict();
+        return new Entry(file, rangesFile, channel, ranges);
+    }
+
+    // Where a download of the video should start: the first byte missing from the beginning
+    public long resumeOffset(String videoId, long fileSize) {
+        Path rangesFile = directory.resolve(key(videoId, fileSize) + RANGES_SUFFIX);
+        if (!Files.exists(rangesFile)) {
+            return 0;
+        }
+        return loadRanges(rangesFile, fileSize).nextMissing(0, fileSize);
+    }
+
+    // Records the ranges held, written aside then moved so that a crash leaves the previous list
+    public void save(Entry entry) {
+        Path temporary = entry.rangesFile.resolveSibling(entry.rangesFile.getFileName() + ".tmp");
+        try {
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))) {
+                for (Map.Entry<Long, Long> range : entry.ranges.toMap().entrySet()) {
+                    writer.println(range.getKey() + "\t" + range.getValue());
+                }
+            }
+            Files.move(temporary, entry.rangesFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.warn("could not save the cache ranges of " + entry.file + ": " + e.getMessage());
+        }
+    }
+
+    public void close(Entry entry) {
+        synchronized (this) {
+            openCounts.computeIfPresent(entry.file, (file, count) -> count > 1 ? count - 1 : null);
+        }
+        save(entry);
+        try {
+            entry.channel.close();
+        } catch (IOException e) {
+            Log.debug("Could not close " + entry.file + ": " + e.getMessage());
+        }
+    }
+
+    private static ByteRanges loadRanges(Path rangesFile, long fileSize) {
+        ByteRanges ranges = new ByteRanges();
+        if (!Files.exists(rangesFile)) {
+            return ranges;
+        }
+        try {
+            for (String line : Files.readAllLines(rangesFile, StandardCharsets.UTF_8)) {
+                String[] range = line.split("\t");
+                if (range.length == 2) {
+                    ranges.add(Math.max(0, Long.parseLong(range[0])), Math.min(fileSize, Long.parseLong(range[1])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.warn("ignoring the corrupted cache ranges " + rangesFile);
+            return new ByteRanges();
+        }
+        return ranges;
+    }
+
+    // Deletes the least recently opened videos until the cache fits its budget, never one open (being played, or
+    // still played while the next rendition downloads)
+    private void evict() throws IOException {
+        long used = 0;
+        for (Path file : videoFiles()) {
+            used += Files.size(file);
+        }
+        for (Path file : new ArrayList<>(opened)) {
+            if (used <= budgetBytes) {
+                break;
+            }
+            if (openCounts.containsKey(file)) {
+                continue;
+            }
+            opened.remove(file);
+            if (!Files.exists(file)) {
+                continue;
+            }
+            used -= Files.size(file);
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory.resolve(baseName(file) + RANGES_SUFFIX));
+            Log.info("Evicted " + file.getFileName() + " from the media cache");
+        }
+    }
+
+    private List<Path> videoFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.filter(path -> !path.getFileName().toString().contains(RANGES_SUFFIX)).forEach(files::add);
+        }
+        return files;
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static String key(String videoId, long fileSize) {
+        return videoId + "-" + fileSize;
+    }
+
+    private static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+}
@@ -0,0 +1,297 @@
+package client;
+
+import inc.Log;
+import protocol.FrameReader;
+import protocol.FrameWriter;
+import protocol.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Extra connections downloading blocks of the current video in parallel with its main stream, which alone cannot
+// fill a link with a large bandwidth-delay product. Each connection asks for one block at a time, always the missing
+// block nearest ahead of the playhead, and writes it at its offset in the video's file. The blocks are the video's
+// segments once a MANIFEST of them arrived, asked by number with SEGMENT so the server answers from its segment
+// cache; until then, or from a server without them, blocks of BLOCK_SIZE asked with RANGE.
+// The main stream skips what they have written already.
+class RangeDownloader {
+    static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int LOOKAHEAD_BLOCKS = 16; // blocks fetched ahead of the playhead at most
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private boolean started = false;
+
+    // current video, guarded by this
+    private String videoId;
+    private long fileSize;
+    private FileChannel file;
+    private ByteRanges ranges;
+    private int generation = 0; // tells apart the blocks of a previous video
+    private long playhead = 0; // offset being played
+    private long streamPosition = 0; // offset the main stream is writing
+    private long[] segmentStarts; // from the video's MANIFEST, null until one arrived
+    private final Set<Long> inFlight = new HashSet<>(); // start offsets of the blocks being downloaded
+
+    RangeDownloader(String host, int port, int connections) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+    }
+
+    synchronized void start(String videoId, long fileSize, FileChannel file, ByteRanges ranges) {
+        this.videoId = videoId;
+        this.fileSize = fileSize;
+        this.file = file;
+        this.ranges = ranges;
+        this.playhead = 0;
+        this.streamPosition = 0;
+        this.segmentStarts = null;
+        generation++;
+        inFlight.clear();
+        if (!started) {
+            started = true;
+            for (int i = 0; i < connections; i++) {
+                Thread worker = new Thread(this::run, "range-download-" + i);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+        notifyAll();
+    }
+
+    synchronized void stop() {
+        videoId = null;
+        file = null;
+        segmentStarts = null;
+        generation++;
+        inFlight.clear();
+    }
+
+    synchronized void setPlayhead(long offset) {
+        playhead = offset;
+        notifyAll();
+    }
+
+    synchronized void setStreamPosition(long offset) {
+        streamPosition = offset;
+        notifyAll();
+    }
+
+    private void run() {
+        String endpointHost = host; // the server, or the child node it redirected this connection to
+        int endpointPort = port;
+        while (true) {
+            try (Socket socket = new Socket(endpointHost, endpointPort)) {
+                FrameWriter out = new FrameWriter(socket.getOutputStream());
+                FrameReader in = new FrameReader(socket.getInputStream());
+                out.hello();
+                in.expectHello();
+                byte[] buffer = new byte[256 * 1024]; // reused for every chunk of this connection
+                int askedGeneration = -1; // video whose segments this connection asked for
+                InetSocketAddress redirect = null;
+                while (redirect == null) {
+                    Block block = nextBlock();
+                    if (block.generation != askedGeneration) {
+                        askedGeneration = block.generation;
+                        if (needsManifest(block)) {
+                            out.manifestQuery(block.videoId);
+                            receiveManifest(block, out, in);
+                        }
+                    }
+                    if (block.segment >= 0) {
+                        out.segment(block.videoId, block.segment);
+                    } else {
+                        out.range(block.videoId, block.offset, block.length);
+                    }
+                    redirect = download(block, out, in, buffer, !endpointHost.equals(host) || endpointPort != port);
+                }
+                endpointHost = redirect.getHostString();
+                endpointPort = redirect.getPort();
+                continue; // the block is asked again there
+            } catch (IOException e) {
+                Log.warn("Range connection lost: " + e.getMessage());
+                endpointHost = host;
+                endpointPort = port;
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(1000); // then reconnect
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Waits for a block to download: the first one ahead of the playhead that is missing and not already being fetched
+    private synchronized Block nextBlock() throws InterruptedException {
+        while (true) {
+            if (videoId != null) {
+                int count = segmentStarts != null ? segmentStarts.length : (int) ((fileSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+                long lookahead = playhead + (long) (LOOKAHEAD_BLOCKS + 1) * BLOCK_SIZE; // bytes fetched ahead of the playhead at most
+                for (int index = blockAt(playhead); index < count && blockStart(index) < lookahead; index++) {
+                    long start = blockStart(index);
+                    long end = index + 1 < count ? blockStart(index + 1) : fileSize;
+                    long missing = ranges.nextMissing(start, end); // what a previous download left of it
+                    boolean streaming = streamPosition >= start && streamPosition < end; // the main stream is already on this one
+                    if (streaming || inFlight.contains(start) || missing >= end) {
+                        continue;
+                    }
+                    inFlight.add(start);
+                    // a whole segment is asked by number, the rest of a partly received one by range
+                    int segment = segmentStarts != null && missing == start ? index : -1;
+                    return new Block(videoId, generation, start, segment, missing, end - missing);
+                }
+            }
+            wait(1000);
+        }
+    }
+
+    private long blockStart(int index) {
+        return segmentStarts != null ? segmentStarts[index] : (long) index * BLOCK_SIZE;
+    }
+
+    private int blockAt(long offset) {
+        if (segmentStarts == null) {
+            return (int) (offset / BLOCK_SIZE);
+        }
+        int i = Arrays.binarySearch(segmentStarts, offset);
+        return i >= 0 ? i : Math.max(0, -i - 2);
+    }
+
+    private synchronized boolean needsManifest(Block block) {
+        return block.generation == generation && segmentStarts == null;
+    }
+
+    private synchronized void dropManifest(Block block) {
+        if (block.generation == generation) {
+            segmentStarts = null;
+        }
+    }
+
+    // Reads the answer to MANIFEST_QUERY; its segments replace the fixed blocks unless the server has none
+    private void receiveManifest(Block block, FrameWriter out, FrameReader in) throws IOException {
+        while (true) {
+            switch (in.next()) {
+                case Protocol.PING -> out.pong(in.readLong());
+                case Protocol.MANIFEST -> {
+                    in.readString();
+                    in.readLong(); // version
+                    long size = in.readLong();
+                    in.readDouble(); // duration
+                    long[] starts = new long[in.readInt()];
+                    for (int i = 0; i < starts.length; i++) {
+                        starts[i] = in.readLong();
+                        in.readDouble(); // time
+                    }
+                    synchronized (this) {
+                        if (block.generation == generation && size == fileSize && starts.length > 0) {
+                            segmentStarts = starts;
+                            Log.debug("Range downloads by segment: " + starts.length + " segments");
+                        }
+                    }
+                    return;
+                }
+                default -> in.skipPayload();
+            }
+        }
+    }
+
+    // Null once the block is done, or where to ask for it again when the server streams it from a child node
+    private InetSocketAddress download(Block block, FrameWriter out, FrameReader in, byte[] buffer, boolean onNode) throws IOException {
+        long position = block.offset;
+        try {
+            while (true) {
+                switch (in.next()) {
+                    case Protocol.VIDEO_START -> {
+                        in.readString();
+                        in.readString();
+                        in.readLong();
+                        position = in.readLong();
+                    }
+                    case Protocol.PING -> out.pong(in.readLong());
+                    case Protocol.VIDEO_CHUNK -> {
+                        int length = in.length();
+                        if (length > buffer.length) {
+                            buffer = new byte[length];
+                        }
+                        in.readFully(buffer, 0, length);
+                        write(block, buffer, length, position);
+                        position += length;
+                    }
+                    case Protocol.REDIRECT -> {
+                        return InetSocketAddress.createUnresolved(in.readString(), in.readInt());
+                    }
+                    case Protocol.VIDEO_ERROR -> {
+                        in.skipPayload();
+                        if (block.segment >= 0) {
+                            dropManifest(block); // segments the server no longer knows: back to ranges
+                        }
+                        // the node may not hold this video, the server knows who does
+                        return onNode ? InetSocketAddress.createUnresolved(host, port) : null;
+                    }
+                    case Protocol.VIDEO_END -> {
+                        in.skipPayload();
+                        return null;
+                    }
+                    default -> in.skipPayload();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (block.generation == generation) {
+                    inFlight.remove(block.start);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void write(Block block, byte[] buffer, int length, long position) throws IOException {
+        FileChannel target;
+        ByteRanges received;
+        synchronized (this) {
+            if (block.generation != generation) {
+                return; // another video was opened meanwhile, the rest of this block is dropped
+            }
+            target = file;
+            received = ranges;
+        }
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+        try {
+            while (chunk.hasRemaining()) {
+                target.write(chunk, position + chunk.position());
+            }
+            received.add(position, position + length);
+        } catch (ClosedChannelException e) {
+            // the video was closed meanwhile
+        }
+    }
+
+    private static final class Block {
+        private final String videoId;
+        private final int generation;
+        private final long start;
+        private final int segment; // asked with SEGMENT, -1 with RANGE
+        private final long offset;
+        private final long length;
+
+        private Block(String videoId, int generation, long start, int segment, long offset, long length) {
+            this.videoId = videoId;
+            this.generation = generation;
+            this.start = start;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
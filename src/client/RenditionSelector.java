@@ -0,0 +1,111 @@
+package client;
+
+import model.VideoMetadata;
+
+import java.util.List;
+
+// Picks the rendition of the title being played: the best one the measured throughput sustains with a safety
+// margin. Up one step at a time, once the buffer ahead of the playhead is comfortable and the last switch is not too
+// recent; down as soon as the buffer runs low on a link slower than the rendition playing.
+class RenditionSelector {
+    // the server paces with credit: a chunk after a longer silence waited for it, the link was idle meanwhile
+    private static final long BURST_GAP_NANOS = 50_000_000L;
+    private static final long SAMPLE_NANOS = 250_000_000L; // busy time measured per throughput sample
+    private static final double SMOOTHING = 0.3; // weight of a new sample in the average
+
+    private final double safetyFactor;
+    private final double upBufferSeconds;
+    private final double downBufferSeconds;
+    private final long switchIntervalNanos;
+
+    private List<VideoMetadata> variants = List.of(); // lowest resolution first
+    private double duration; // of the title, for variants whose own duration is unknown
+    private int current = -1;
+    private long lastSwitch;
+
+    // bytes per second while receiving, 0 until measured; kept from one title to the next
+    private double throughput = 0;
+    private long lastArrival = 0;
+    private long sampleBytes = 0;
+    private long sampleNanos = 0;
+
+    RenditionSelector(double safetyFactor, double upBufferSeconds, double downBufferSeconds, double switchIntervalSeconds) {
+        this.safetyFactor = safetyFactor;
+        this.upBufferSeconds = upBufferSeconds;
+        this.downBufferSeconds = downBufferSeconds;
+        this.switchIntervalNanos = (long) (switchIntervalSeconds * 1e9);
+    }
+
+    // A title was chosen: the rendition to start with, the lowest until the throughput is known
+    synchronized VideoMetadata start(VideoMetadata title) {
+        variants = title.getVariants().isEmpty() ? List.of(title) : title.getVariants();
+        duration = title.getDuration();
+        current = throughput > 0 ? sustainable() : 0;
+        lastSwitch = System.nanoTime();
+        return variants.get(current);
+    }
+
+    // A chunk of the stream arrived
+    synchronized void received(int bytes, long now) {
+        long gap = now - lastArrival;
+        lastArrival = now;
+        if (gap >= BURST_GAP_NANOS) {
+            return;
+        }
+        sampleBytes += bytes;
+        sampleNanos += gap;
+        if (sampleNanos >= SAMPLE_NANOS) {
+            double sample = sampleBytes * 1e9 / sampleNanos;
+            throughput = throughput > 0 ? throughput + SMOOTHING * (sample - throughput) : sample;
+            sampleBytes = 0;
+            sampleNanos = 0;
+        }
+    }
+
+    // The rendition to switch to with this much media downloaded ahead of the playhead, null to stay. The selector
+    // only moves to it once the server streams it (switched), a refused switch leaves it where it was.
+    synchronized VideoMetadata next(double bufferSeconds, long now) {
+        if (variants.size() < 2 || throughput <= 0) {
+            return null;
+        }
+        int target = sustainable();
+        if (target > current && bufferSeconds >= upBufferSeconds && now - lastSwitch >= switchIntervalNanos) {
+            target = current + 1;
+        } else if (target >= current || bufferSeconds >= downBufferSeconds) {
+            return null;
+        }
+        return variants.get(target);
+    }
+
+    // The server started streaming this rendition of the title
+    synchronized void switched(String videoId, long now) {
+        for (int i = 0; i < variants.size(); i++) {
+            if (variants.get(i).getId().equals(videoId)) {
+                current = i;
+                lastSwitch = now;
+            }
+        }
+    }
+
+    synchronized double getThroughput() {
+        return throughput;
+    }
+
+    // Highest variant whose bitrate fits in the throughput with the margin, the lowest if none does
+    private int sustainable() {
+        int best = 0;
+        for (int i = 1; i < variants.size(); i++) {
+            if (bitrate(variants.get(i)) <= safetyFactor * throughput) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private double bitrate(VideoMetadata variant) {
+        if (variant.getBitrate() > 0) {
+            return variant.getBitrate();
+        }
+        return duration > 0 ? variant.getFileSize() / duration : 0;
+    }
+}
@@ -1,7 +1,11 @@
 package client;
 
 import inc.CSVReader;
+import inc.Log;
 import model.VideoMetadata;
+import protocol.FrameReader;
+import protocol.FrameWriter;
+import protocol.Protocol;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -19,135 +23,330 @@ import javafx.geometry.Pos;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class VideoStreamingClient extends Application {
     private String server_host;
     private int server_port;
+    private double preroll_seconds = 2; // media downloaded before playback starts, at the video's average bitrate
+    private String cache_directory = "etc/cache"; // downloaded videos, kept between sessions
+    private long cache_budget_bytes = 2L * 1024 * 1024 * 1024;
+    private int parallel_connections = 1; // connections downloading the video being played, the extra ones fetch ranges
+    // renditions of a title: chosen from the throughput, switched when the buffer ahead of the playhead allows or requires
+    private double abr_safety_factor = 0.7; // share of the measured throughput a rendition's bitrate may use
+    private double abr_up_buffer_seconds = 15;
+    private double abr_down_buffer_seconds = 5;
+    private double abr_switch_interval_seconds = 10; // between two switches up
+    private String log_level = "INFO";
 
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private FrameWriter out;
+    private FrameReader in;
+    // connection the current video streams on: the server's own, or a child node's after a REDIRECT
+    private volatile FrameWriter streamOut;
+    private volatile Socket nodeSocket;
+    private String requestedVideoId; // last STREAM sent to the server, repeated to the node it redirects to
+    private long requestedOffset;
+    private double requestedTime = -1; // a SWITCH rather than a STREAM was sent: media time to take over at
     private MediaView mediaView;
     private MediaPlayer mediaPlayer;
     private Media media;
+    private Slider progressBar;
+    private AtomicBoolean isDragging;
     private Stage videoStage;
     private ListView<VideoMetadata> videoList;
+    private ComboBox<String> sortChoice;
+    private TextField mediaTypeFilter;
+    private TextField directoryFilter;
 
     // Chunked streaming variables
     private final String configPath = "etc/config/client.csv";
-    private Path tempVideoFile;
-    private BufferedOutputStream tempFileOutputStream;
+    private MediaCache mediaCache;
+    private volatile MediaCache.Entry cacheEntry; // the video being played
+    private volatile MediaCache.Entry playingEntry; // during a switch, the rendition the player still reads
+    private Path videoFile;
+    private volatile FileChannel videoChannel; // sized to the video, written at the offsets the server sends, seeks leave gaps filled later
+    private static final long RANGES_SAVE_INTERVAL_NANOS = 1_000_000_000L;
+    private long lastRangesSave = 0;
+    private RangeDownloader rangeDownloader; // null with a single connection
+    private static final int WRITE_BATCH_SIZE = 1024 * 1024;
+    private static final Log.Sampler CHUNK_LOG = new Log.Sampler(Log.Level.DEBUG, 1000);
+    private final ChunkBatch chunkBatch = new ChunkBatch(WRITE_BATCH_SIZE); // consecutive chunks not yet written
+    private String currentVideoId;
+    private long currentFileSize;
+    private ByteRanges receivedRanges = new ByteRanges();
+    private volatile boolean seekPending = false; // a SEEK was sent and its VIDEO_SEEK has not come back yet
     private volatile boolean isStreamingActive = false;
+    private static final double PLAYBACK_REPORT_INTERVAL = 1; // seconds of playback between two credit grants
+    private volatile double lastReportedTime = -1;
+
+    // Playback start: the receive path completes startupReady once the pre-roll is on disk
+    private static final long DEFAULT_STARTUP_BYTES = 1024 * 1024; // when the duration, hence the bitrate, is unknown
+    private static final long MIN_STARTUP_BYTES = 64 * 1024;
+    private volatile double selectedDuration; // seconds, from the catalog, 0 if unknown
+    private long startupThreshold;
+    private CompletableFuture<Void> startupReady;
+    private volatile long streamRequestedAt; // System.nanoTime() of the click on the video
+    private volatile long timeToFirstFrameMillis = -1; // of the last video started
+
+    // Switching renditions: the new one downloads meanwhile, the player moves to it once its pre-roll is there
+    private RenditionSelector renditions;
+    private volatile double switchTime = -1; // media time the switch was asked at, -1 when none is under way
+    private volatile long switchOffset = -1; // where the new rendition's data from that time starts (its VIDEO_SEEK)
+
+    // Catalog, loaded page by page as the list is scrolled
+    private static final int CATALOG_PAGE_SIZE = 50;
+    private static final String[] SORTS = { "Titre", "Taille", "Durée", "Récents" }; // index = Protocol.SORT_*
+    private final Set<String> listedIds = new HashSet<>();
+    private int catalogLoaded = 0; // videos of the query received so far, the next page starts there
+    private int catalogTotal = -1; // videos matching the query, -1 before the first page
+    private boolean pageRequested = false;
+    private int stalePages = 0; // answers still to come for a query replaced since
+    private boolean reloading = false; // the next page replaces the list: the catalog changed under the offsets
 
     @Override
     public void start(Stage primaryStage) {
         try {
             // import settings
             CSVReader.importConfig(configPath, this);
+            Log.setLevel(log_level);
+            mediaCache = new MediaCache(Paths.get(cache_directory), cache_budget_bytes);
+            renditions = new RenditionSelector(abr_safety_factor, abr_up_buffer_seconds, abr_down_buffer_seconds, abr_switch_interval_seconds);
+            if (parallel_connections > 1) {
+                rangeDownloader = new RangeDownloader(server_host, server_port, parallel_connections - 1);
+            }
 
             // Establish socket connection
-            socket = new Socket(server_host, server_port);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+            connect();
 
             // Setup video listing UI
             initializeVideoView();
 
             // Listen for server responses in a separate thread
-            new Thread(this::listenForServerResponses).start();
+            listen(in, out, null);
             isStreamingActive = true;
 
             // Setup JavaFX UI
             initializePrimaryStage(primaryStage);
 
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            Log.error("Could not connect to " + server_host + ":" + server_port, e);
             showErrorDialog("Connection Error", "Could not connect to the server.");
         }
     }
 
-    private void listenForServerResponses() {
+    private void connect() throws IOException {
+        socket = new Socket(server_host, server_port);
+        out = new FrameWriter(socket.getOutputStream());
+        in = new FrameReader(socket.getInputStream());
+
+        // protocol handshake, the server answers with its own HELLO
+        out.hello();
+        in.expectHello();
+        if (nodeSocket == null) {
+            streamOut = out;
+        }
+    }
+
+    private void listen(FrameReader in, FrameWriter out, Socket nodeConnection) {
+        new Thread(() -> listenForServerResponses(in, out, nodeConnection)).start();
+    }
+
+    // Frames of one connection, the server's (nodeConnection == null) or the child node a stream was redirected to
+    private void listenForServerResponses(FrameReader in, FrameWriter out, Socket nodeConnection) {
         try {
             while (true) {
-                Object response = in.readObject();
+                byte response = in.next();
 
-                switch (response.toString()) {
+                switch (response) {
 
-                    case "VIDEO_START" -> {
+                    case Protocol.VIDEO_START -> {
                         // Prepare for video streaming
                         isStreamingActive = true;
-                        String videoId = (String) in.readObject();
-                        String mediaType = (String) in.readObject();
+                        lastReportedTime = -1;
+                        String mediaType = in.readString();
+                        String videoId = in.readString();
                         long fileSize = in.readLong();
+                        long startOffset = in.readLong();
+                        seekPending = false;
 
-                        // Create a temporary file for the video
-                        tempVideoFile = Files.createTempFile("streaming", mediaType);
-                        tempFileOutputStream = new BufferedOutputStream(new FileOutputStream(tempVideoFile.toFile()));
+                        // resuming the video being played: fill its file further
+                        if (videoId.equals(currentVideoId) && videoChannel != null) {
+                            moveTo(startOffset);
+                            break;
+                        }
 
-                        // Start a thread to handle progressive video playing
-                        new Thread(() -> startProgressiveVideoPlayback()).start();
-                    }
-                    case "GET_PLAYBACK" -> {
-                        if (mediaPlayer == null || media == null) { // if not playing the video/audio
-                            out.writeDouble(0);
-                            out.writeDouble(200);
-                            out.flush();
-                        } else { // if playing
-                            try {
-                                sendPlaybackDurations();
-                            } catch (Exception e) {
-                                break;
-                            }
+                        // Open the video in the cache, with what earlier sessions already downloaded of it. The rendition
+                        // switched from stays open, so not evicted, until the player moves to this one
+                        writeBatch();
+                        if (switchTime < 0) {
+                            releasePlaying();
+                        } else if (playingEntry == null) {
+                            playingEntry = cacheEntry;
+                            cacheEntry = null;
+                        }
+                        closeVideo();
+                        cacheEntry = mediaCache.open(videoId, fileSize, mediaType);
+                        currentVideoId = videoId;
+                        currentFileSize = fileSize;
+                        receivedRanges = cacheEntry.getRanges();
+                        videoFile = cacheEntry.getFile();
+                        videoChannel = cacheEntry.getChannel();
+                        chunkBatch.open(videoChannel, receivedRanges, startOffset);
+                        if (rangeDownloader != null) {
+                            rangeDownloader.start(videoId, fileSize, videoChannel, receivedRanges);
+                        }
+                        if (switchTime >= 0) {
+                            renditions.switched(videoId, System.nanoTime());
                         }
+
+                        // Playback starts as soon as the pre-roll has been written, or moves to this rendition
+                        startupThreshold = startupThreshold(fileSize);
+                        startupReady = new CompletableFuture<>();
+                        startupReady.thenRun(switchTime >= 0 ? this::switchPlayback : this::startProgressiveVideoPlayback);
+                        checkStartup();
                     }
-                    case "VIDEO_CHUNK" -> {
-                        // Receive and save video chunk
-                        if(isStreamingActive) {
-                            int bytesRead = in.readInt();
-                            byte[] buffer = new byte[bytesRead];
-                            in.readFully(buffer);
-
-                            if (tempFileOutputStream != null) {
-                                tempFileOutputStream.write(buffer);
-                                tempFileOutputStream.flush();
-                            }
+                    case Protocol.VIDEO_SEEK -> {
+                        // the server moved, the following chunks belong at this offset
+                        long offset = in.readLong();
+                        moveTo(offset);
+                        seekPending = false;
+                        if (switchTime >= 0) {
+                            switchOffset = offset; // past the new rendition's header, at the switch time
                         }
-                        System.out.println("receiving data");
                     }
-                    case "WAITING" -> {
-                        try {
-                            sendPlaybackDurations();
-                        } catch (Exception e) {
+                    case Protocol.PING -> out.pong(in.readLong()); // answered at once, the server sizes its chunks with it
+                    case Protocol.VIDEO_CHUNK -> {
+                        // Receive video chunk, appended to the batch of consecutive chunks
+                        int bytesRead = in.length();
+                        if (!isStreamingActive || videoChannel == null) {
+                            in.skipPayload();
                             break;
                         }
-                        System.out.println("receiving suspended");
+                        renditions.received(bytesRead, System.nanoTime());
+                        if (chunkBatch.receive(in, bytesRead)) {
+                            batchWritten();
+                        }
+
+                        // written once nothing more is waiting on the socket, so the player is never behind what arrived
+                        if (in.available() == 0) {
+                            writeBatch();
+                        }
+                        skipReceivedRange();
+                        CHUNK_LOG.log(() -> "Received a chunk of " + bytesRead + " bytes");
                     }
-                    case "VIDEO_END" -> {
-                        // Close the file stream when video is fully received
-                        if (tempFileOutputStream != null) {
-                            tempFileOutputStream.close();
-                            tempFileOutputStream = null;
+                    case Protocol.VIDEO_END -> {
+                        // the end is reached, now fetch what was skipped by seeking ahead
+                        writeBatch();
+                        saveRanges();
+                        long gap = receivedRanges.nextMissing(0, currentFileSize);
+                        if (isStreamingActive && videoChannel != null && gap < currentFileSize) {
+                            // as a RANGE, one gap at a time: the rest of a view already admitted, never refused BUSY
+                            out.range(currentVideoId, gap, receivedRanges.nextPresent(gap, currentFileSize) - gap);
                         }
-                        System.out.println("vita");
+                        Log.debug("End of stream");
                     }
-                    case "VIDEO_ERROR" -> Platform.runLater(() -> showErrorDialog("Streaming Error", "Could not stream the video."));
+                    case Protocol.REDIRECT -> followRedirect(in.readString(), in.readInt());
+                    case Protocol.BUSY -> retryLater(in.readInt(), in.readString());
+                    case Protocol.VIDEO_ERROR -> {
+                        String message = in.readString();
+                        if (switchTime >= 0 && currentVideoId != null && !currentVideoId.equals(requestedVideoId)) {
+                            // the other rendition could not be streamed: the one playing carries on
+                            Log.warn("Could not switch to " + requestedVideoId + ": " + message);
+                            switchTime = -1;
+                            switchOffset = -1;
+                            resumeStream();
+                            break;
+                        }
+                        Platform.runLater(() -> showErrorDialog("Streaming Error", message));
+                    }
+                    case Protocol.CATALOG_PAGE -> {
+                        int offset = in.readInt();
+                        int total = in.readInt();
+                        List<VideoMetadata> page = in.readVideos();
+                        Platform.runLater(() -> {
+                            if (stalePages > 0) {
+                                stalePages--;
+                                return;
+                            }
+                            if (reloading) {
+                                reloading = false;
+                                videoList.getItems().clear();
+                                listedIds.clear();
+                            }
+                            catalogLoaded = Math.max(catalogLoaded, offset + page.size());
+                            catalogTotal = total;
+                            pageRequested = false;
+                            for (VideoMetadata video : page) {
+                                if (listedIds.add(video.getId())) {
+                                    videoList.getItems().add(video);
+                                }
+                            }
+                        });
+                    }
+                    case Protocol.CATALOG_DELTA -> {
+                        // files added to or removed from the server's storage since the list was received: the part
+                        // already listed is asked again, in the chosen order, and the following pages start after it
+                        in.readVideos();
+                        Set<String> removed = new HashSet<>(in.readIds());
+                        Platform.runLater(() -> {
+                            videoList.getItems().removeIf(video -> removed.contains(video.getId()));
+                            listedIds.removeAll(removed);
+                            reloadCatalog();
+                        });
+                    }
+                    default -> in.skipPayload();
                 }
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
+            if (nodeConnection != null && nodeConnection != nodeSocket) {
+                return; // closed on purpose, another connection streams now
+            }
+            // keep what arrived before the connection was lost
+            try {
+                writeBatch();
+                saveRanges();
+            } catch (IOException ignored) {
+            }
+            if (nodeConnection != null) {
+                // the child node is gone: the server streams the rest or sends to another node holding it
+                nodeSocket = null;
+                streamOut = this.out;
+                if (currentVideoId != null && cacheEntry != null) {
+                    try {
+                        resumeStream();
+                    } catch (IOException ex) {
+                        Log.warn("Could not ask the server for the rest of " + currentVideoId + ": " + ex.getMessage());
+                    }
+                }
+                return;
+            }
             Platform.runLater(() -> {
                 try {
                     isStreamingActive = false;
-                    socket = new Socket(server_host, server_port);
-                    out = new ObjectOutputStream(socket.getOutputStream());
-                    in = new ObjectInputStream(socket.getInputStream());
+                    connect();
+                    // the list already displayed stays, pages continue from where they were
+                    pageRequested = false;
+                    requestCatalogPage();
+                    // the video being played resumes, unless a child node streams it
+                    if (currentVideoId != null && cacheEntry != null && nodeSocket == null) {
+                        resumeStream();
+                    }
                 } catch (IOException ex) {
-                    throw new RuntimeException(ex);
+                    Log.warn("Could not reconnect to the server: " + ex.getMessage());
+                    showErrorDialog("Connection Lost", "Lost connection to the server.");
+                    return;
                 }
 
-                new Thread(this::listenForServerResponses).start();
+                // the reader of the new connection, the one passed in belongs to the lost socket
+                listen(this.in, this.out, null);
             });
 //            Platform.runLater(() -> showErrorDialog("Connection Lost", "Lost connection to the server."));
         }
@@ -155,14 +354,8 @@ public class VideoStreamingClient extends Application {
 
     private void startProgressiveVideoPlayback() {
         try {
-            // Wait until some initial data is received
-            while (tempFileOutputStream == null || tempVideoFile == null ||
-                    Files.size(tempVideoFile) < 1024 * 1024) { // Wait until at least 1MB is downloaded
-                Thread.sleep(100);
-            }
-
             Platform.runLater(() -> {
-                media = new Media(tempVideoFile.toUri().toString());
+                media = new Media(videoFile.toUri().toString());
 
 // initialisation videoStage
                 if (videoStage == null) {
@@ -183,7 +376,7 @@ public class VideoStreamingClient extends Application {
                 button.setStyle("-fx-background-color: #4CAF50; -fx-text-fill: white; -fx-font-size: 16px; -fx-padding: 10px 20px;");
 
 // Configuration de la progressBar
-                Slider progressBar = new Slider();
+                progressBar = new Slider();
                 progressBar.setMin(0);
                 progressBar.setMax(100);
                 progressBar.setPrefWidth(500);
@@ -193,7 +386,7 @@ public class VideoStreamingClient extends Application {
                 progressBar.setStyle("-fx-accent: #4CAF50;"); // Couleur verte du progrès
 
                 /// logique
-                AtomicBoolean isDragging = new AtomicBoolean(false);
+                isDragging = new AtomicBoolean(false);
 
                 progressBar.setOnMousePressed(event -> {
                     if (isStreamingActive) {
@@ -204,6 +397,7 @@ public class VideoStreamingClient extends Application {
                     if (isStreamingActive) {
                         isDragging.set(false);
                         double newTime = progressBar.getValue() / 100 * mediaPlayer.getTotalDuration().toSeconds();
+                        requestSeek(newTime, mediaPlayer.getTotalDuration().toSeconds());
                         mediaPlayer.seek(Duration.seconds(newTime));
                     }
                 });
@@ -224,11 +418,14 @@ public class VideoStreamingClient extends Application {
 // Configuration du MediaPlayer
                 mediaPlayer = new MediaPlayer(media);
                 mediaView.setMediaPlayer(mediaPlayer);
-
-                mediaPlayer.currentTimeProperty().addListener((obs, oldTime, newTime) -> {
-                    if (!isDragging.get() && isStreamingActive) {
-                        double progress = newTime.toSeconds() / mediaPlayer.getTotalDuration().toSeconds();
-                        progressBar.setValue(progress * 100);
+                followPlayback(mediaPlayer);
+                // first report as soon as the duration is known, the server paces with it from then on
+                mediaPlayer.setOnReady(this::sendPlaybackDurations);
+                long requestedAt = streamRequestedAt;
+                mediaPlayer.setOnPlaying(() -> {
+                    if (requestedAt == streamRequestedAt && timeToFirstFrameMillis < 0) {
+                        timeToFirstFrameMillis = (System.nanoTime() - requestedAt) / 1_000_000;
+                        Log.info("Time to first frame: " + timeToFirstFrameMillis + " ms");
                     }
                 });
 
@@ -263,6 +460,7 @@ public class VideoStreamingClient extends Application {
                 videoStage.setOnCloseRequest(event -> {
                     // Stop stream
                     isStreamingActive = false;
+                    switchTime = -1;
 
                     // Stop and dispose of media player
                     if (mediaPlayer != null) {
@@ -271,33 +469,16 @@ public class VideoStreamingClient extends Application {
                         mediaPlayer = null;
                     }
 
-                    // Close temporary file stream
-                    try {
-                        if (tempFileOutputStream != null) {
-                            tempFileOutputStream.close();
-                            tempFileOutputStream = null;
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                    // Delete temporary video file
-                    try {
-                        if (tempVideoFile != null) {
-                            Files.deleteIfExists(tempVideoFile);
-                            tempVideoFile = null;
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                    // Close the video file, it stays in the cache with what was downloaded
+                    closeVideo();
+                    releasePlaying();
+                    currentVideoId = null;
 
                     // Send command to server
                     try {
-                        out.writeObject("EXIT");
-                        out.writeBoolean(true);
-                        out.flush();
+                        streamOut.exit(true);
                     } catch (IOException e) {
-                        e.printStackTrace();
+                        Log.warn("Could not stop the stream: " + e.getMessage());
                     }
 
                     // Close video stage
@@ -309,25 +490,76 @@ public class VideoStreamingClient extends Application {
             });
 
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Could not play " + videoFile, e);
             Platform.runLater(() -> showErrorDialog("Video Error", "Could not play the video."));
         }
     }
 
+    private void followPlayback(MediaPlayer player) {
+        player.currentTimeProperty().addListener((obs, oldTime, newTime) -> {
+            if (player != mediaPlayer) {
+                return; // replaced by another rendition's
+            }
+            if (!isDragging.get() && isStreamingActive) {
+                double progress = newTime.toSeconds() / player.getTotalDuration().toSeconds();
+                progressBar.setValue(progress * 100);
+            }
+            // grant the server more credit as playback advances (or jumps after a seek)
+            if (isStreamingActive && Math.abs(newTime.toSeconds() - lastReportedTime) >= PLAYBACK_REPORT_INTERVAL) {
+                sendPlaybackDurations();
+            }
+        });
+    }
+
+    // The new rendition's pre-roll is there: a player for it takes over where the current one is by then
+    private void switchPlayback() {
+        Platform.runLater(() -> {
+            MediaPlayer previous = mediaPlayer;
+            if (switchTime < 0 || previous == null || mediaView == null) {
+                return; // the video was closed or another one chosen meanwhile
+            }
+            Media next = new Media(videoFile.toUri().toString());
+            MediaPlayer player = new MediaPlayer(next);
+            player.setOnReady(() -> {
+                if (previous != mediaPlayer || switchTime < 0) {
+                    player.dispose();
+                    return;
+                }
+                boolean playing = previous.getStatus() == MediaPlayer.Status.PLAYING;
+                player.seek(previous.getCurrentTime());
+                previous.dispose();
+                releasePlaying();
+                media = next;
+                mediaPlayer = player;
+                mediaView.setMediaPlayer(player);
+                followPlayback(player);
+                if (playing) {
+                    player.play();
+                }
+                switchTime = -1;
+                switchOffset = -1;
+                sendPlaybackDurations();
+            });
+        });
+    }
+
     private void initializePrimaryStage(Stage primaryStage) {
         VBox layout = new VBox(10);
-        layout.getChildren().addAll(videoList);
+        HBox filters = new HBox(10, new Label("Tri"), sortChoice, new Label("Type"), mediaTypeFilter, new Label("Dossier"), directoryFilter);
+        filters.setAlignment(Pos.CENTER_LEFT);
+        filters.setPadding(new Insets(10, 10, 0, 10));
+        layout.getChildren().addAll(filters, videoList);
+        VBox.setVgrow(videoList, javafx.scene.layout.Priority.ALWAYS);
 
         Scene scene = new Scene(layout, 800, 600);
         primaryStage.setTitle("Liste vidéos");
         primaryStage.setScene(scene);
         primaryStage.setOnCloseRequest(event -> {
             try {
-                out.writeObject("EXIT");
-                out.writeBoolean(false);
+                out.exit(false);
                 socket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.debug("Could not close the connection: " + e.getMessage());
             }
             System.exit(0);
         });
@@ -335,42 +567,349 @@ public class VideoStreamingClient extends Application {
         primaryStage.show();
     }
 
-    private void initializeVideoView() throws IOException, ClassNotFoundException {
-        // Receive available videos from server
-        List<VideoMetadata> availableVideos = (List<VideoMetadata>) in.readObject();
+    private void initializeVideoView() throws IOException {
+        // The list shows at once, the server sends the catalog a page at a time
         videoList = new ListView<>();
-        Platform.runLater(() -> {
-            videoList.getItems().addAll(availableVideos);
+        videoList.setCellFactory(list -> new ListCell<>() {
+            @Override
+            protected void updateItem(VideoMetadata video, boolean empty) {
+                super.updateItem(video, empty);
+                setText(empty || video == null ? null : video + renditionHeights(video));
+                // the end of the list is in sight: load the next page
+                if (!empty && getIndex() >= videoList.getItems().size() - CATALOG_PAGE_SIZE / 2) {
+                    requestCatalogPage();
+                }
+            }
         });
 
+        // Changing the order or a filter starts the catalog over
+        sortChoice = new ComboBox<>();
+        sortChoice.getItems().addAll(SORTS);
+        sortChoice.getSelectionModel().select(Protocol.SORT_TITLE);
+        sortChoice.setOnAction(event -> restartCatalog());
+        mediaTypeFilter = new TextField();
+        mediaTypeFilter.setPromptText(".mp4");
+        mediaTypeFilter.setOnAction(event -> restartCatalog());
+        directoryFilter = new TextField();
+        directoryFilter.setPromptText("storage1");
+        directoryFilter.setOnAction(event -> restartCatalog());
+
+        requestCatalogPage();
+
         // Video selection event
         videoList.setOnMouseClicked(event -> {
             VideoMetadata selectedVideo = videoList.getSelectionModel().getSelectedItem();
             if (selectedVideo != null) {
                 try {
-                    // Reset previous streaming setup
-                    if (tempVideoFile != null) {
-                        Files.deleteIfExists(tempVideoFile);
-                    }
-
-                    // Request video streaming
-                    out.writeObject("STREAM:" + selectedVideo.getId());
-                    out.flush();
+                    // Request video streaming, from where a previous download stopped (its size if it is complete),
+                    // in the rendition the throughput measured so far sustains
+                    currentVideoId = null;
+                    switchTime = -1;
+                    selectedDuration = selectedVideo.getDuration();
+                    streamRequestedAt = System.nanoTime();
+                    timeToFirstFrameMillis = -1;
+                    VideoMetadata rendition = renditions.start(selectedVideo);
+                    requestStream(rendition.getId(), mediaCache.resumeOffset(rendition.getId(), rendition.getFileSize()));
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.warn("Could not ask for " + selectedVideo.getTitle() + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    // Asks the server for a video, it streams it or redirects to the child node that will
+    private void requestStream(String videoId, long offset) throws IOException {
+        closeNodeConnection();
+        requestedVideoId = videoId;
+        requestedOffset = offset;
+        requestedTime = -1;
+        out.stream(videoId, offset);
+    }
+
+    // Asks the server for another rendition of the video being played, sent from its header then from the time given
+    private void requestSwitch(String videoId, double time) throws IOException {
+        closeNodeConnection();
+        requestedVideoId = videoId;
+        requestedOffset = 0;
+        requestedTime = time;
+        switchOffset = -1;
+        out.switchRendition(videoId, time);
+    }
+
+    // The stream of the video being played stopped: a switch under way is asked again, otherwise the video resumes
+    // from its first missing byte
+    private void resumeStream() throws IOException {
+        if (switchTime >= 0 && requestedVideoId != null) {
+            requestSwitch(requestedVideoId, switchTime);
+            return;
+        }
+        long resumeOffset = receivedRanges.nextMissing(0, currentFileSize);
+        if (resumeOffset < currentFileSize) {
+            requestStream(currentVideoId, resumeOffset);
+        }
+    }
+
+    // The server is full: the same request again after the delay it asked for, unless another video was chosen meanwhile
+    private void retryLater(int retryAfterMillis, String reason) {
+        String videoId = requestedVideoId;
+        long offset = requestedOffset;
+        double time = requestedTime;
+        Log.info("Server busy (" + reason + "), retrying in " + retryAfterMillis + " ms");
+        CompletableFuture.delayedExecutor(retryAfterMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (videoId == null || !videoId.equals(requestedVideoId) || offset != requestedOffset) {
+                return;
+            }
+            try {
+                if (time >= 0) {
+                    requestSwitch(videoId, time);
+                } else {
+                    requestStream(videoId, offset);
                 }
+            } catch (IOException e) {
+                Log.warn("Could not ask for " + videoId + " again: " + e.getMessage());
             }
         });
     }
 
-    private void sendPlaybackDurations() throws Exception {
-        // send playback durations
+    // Called on the server's connection: the requested video streams from a child node
+    private void followRedirect(String host, int port) throws IOException {
+        closeNodeConnection();
+        Socket connection = new Socket(host, port);
+        FrameWriter nodeOut = new FrameWriter(connection.getOutputStream());
+        FrameReader nodeIn = new FrameReader(connection.getInputStream());
+        nodeOut.hello();
+        nodeIn.expectHello();
+        Log.info("Streaming from node " + host + ":" + port);
+        nodeSocket = connection;
+        streamOut = nodeOut;
+        listen(nodeIn, nodeOut, connection);
+        if (requestedTime >= 0) {
+            nodeOut.switchRendition(requestedVideoId, requestedTime);
+        } else {
+            nodeOut.stream(requestedVideoId, requestedOffset);
+        }
+    }
+
+    private void closeNodeConnection() {
+        Socket connection = nodeSocket;
+        nodeSocket = null;
+        streamOut = out;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Log.debug("Could not close the node connection: " + e.getMessage());
+            }
+        }
+    }
+
+    // " (480p, 1080p)" for a title available in several renditions
+    private static String renditionHeights(VideoMetadata video) {
+        if (video.getVariants().size() < 2) {
+            return "";
+        }
+        StringBuilder heights = new StringBuilder();
+        for (VideoMetadata variant : video.getVariants()) {
+            heights.append(heights.length() == 0 ? " (" : ", ").append(variant.getHeight()).append('p');
+        }
+        return heights.append(')').toString();
+    }
+
+    private void restartCatalog() {
+        videoList.getItems().clear();
+        listedIds.clear();
+        catalogLoaded = 0;
+        catalogTotal = -1;
+        if (pageRequested) {
+            stalePages++;
+        }
+        pageRequested = false;
+        reloading = false;
+        requestCatalogPage();
+    }
+
+    // Asks again for as many videos as are listed, from the start; the answer replaces the list
+    private void reloadCatalog() {
+        if (pageRequested) {
+            stalePages++;
+        }
+        int count = Math.max(CATALOG_PAGE_SIZE, videoList.getItems().size());
+        catalogLoaded = 0;
+        catalogTotal = -1;
+        pageRequested = true;
+        reloading = true;
+        try {
+            out.catalogQuery(0, count, (byte) sortChoice.getSelectionModel().getSelectedIndex(),
+                    mediaTypeFilter.getText().trim(), directoryFilter.getText().trim());
+        } catch (IOException e) {
+            Log.warn("Could not reload the catalog: " + e.getMessage());
+        }
+    }
+
+    // Asks for the page after the videos already listed, one request at a time
+    private void requestCatalogPage() {
+        if (pageRequested || (catalogTotal >= 0 && catalogLoaded >= catalogTotal)) {
+            return;
+        }
+        pageRequested = true;
+        try {
+            out.catalogQuery(catalogLoaded, CATALOG_PAGE_SIZE, (byte) sortChoice.getSelectionModel().getSelectedIndex(),
+                    mediaTypeFilter.getText().trim(), directoryFilter.getText().trim());
+        } catch (IOException e) {
+            Log.warn("Could not ask for the catalog: " + e.getMessage());
+        }
+    }
+
+    // Saves the batched chunks, one positional write for all of them
+    private void writeBatch() throws IOException {
+        if (chunkBatch.flush()) {
+            batchWritten();
+        }
+    }
+
+    private void batchWritten() {
+        checkStartup();
+        if (rangeDownloader != null) {
+            rangeDownloader.setStreamPosition(chunkBatch.getWriteOffset());
+        }
+        if (System.nanoTime() - lastRangesSave >= RANGES_SAVE_INTERVAL_NANOS) {
+            saveRanges();
+        }
+    }
+
+    // Persists what the cache holds of the current video, so that a crash loses at most the last second of it
+    private void saveRanges() {
+        MediaCache.Entry entry = cacheEntry;
+        if (entry != null) {
+            mediaCache.save(entry);
+            lastRangesSave = System.nanoTime();
+        }
+    }
+
+    private void closeVideo() {
+        MediaCache.Entry entry = cacheEntry;
+        cacheEntry = null;
+        videoChannel = null;
+        if (rangeDownloader != null) {
+            rangeDownloader.stop();
+        }
+        if (entry != null) {
+            mediaCache.close(entry);
+        }
+    }
+
+    // The rendition switched from is not played any more
+    private void releasePlaying() {
+        MediaCache.Entry entry = playingEntry;
+        playingEntry = null;
+        if (entry != null) {
+            mediaCache.close(entry);
+        }
+    }
+
+    // Bytes to have from the start of the file before playing: preroll_seconds at the average bitrate
+    private long startupThreshold(long fileSize) {
+        if (selectedDuration <= 0) {
+            return Math.min(DEFAULT_STARTUP_BYTES, fileSize);
+        }
+        long preroll = (long) (fileSize / selectedDuration * preroll_seconds);
+        return Math.min(Math.max(MIN_STARTUP_BYTES, preroll), fileSize);
+    }
+
+    // From the start of the file, or for a switch from where the new rendition's data resumes after its header: not
+    // before the server said where that is (its VIDEO_SEEK), the header alone does not play
+    private void checkStartup() {
+        if (switchTime >= 0 && switchOffset < 0) {
+            return;
+        }
+        long from = switchTime >= 0 ? switchOffset : 0;
+        if (startupReady != null && !startupReady.isDone() && receivedRanges.contiguousEnd(0) > 0
+                && receivedRanges.contiguousEnd(from) >= Math.min(from + startupThreshold, currentFileSize)) {
+            Log.info("Pre-roll of " + startupThreshold + " bytes received in " + (System.nanoTime() - streamRequestedAt) / 1_000_000 + " ms");
+            startupReady.complete(null);
+        }
+    }
+
+    // From the click on a video to the player actually playing it, -1 until measured
+    public long getTimeToFirstFrameMillis() {
+        return timeToFirstFrameMillis;
+    }
+
+    // The next chunks go to another offset: the batch so far is written first
+    private void moveTo(long offset) throws IOException {
+        if (chunkBatch.moveTo(offset)) {
+            batchWritten();
+        }
+    }
+
+    // A seek past what is downloaded moves the server there first, the skipped part is fetched after the end.
+    // The server maps the time to its offset from the video's index, the bitrate is rarely constant.
+    private void requestSeek(double time, double totalTime) {
+        long estimate = (long) (currentFileSize * (time / totalTime));
+        if (estimate < 0 || receivedRanges.nextMissing(0, currentFileSize) >= currentFileSize) {
+            return;
+        }
+        try {
+            seekPending = true;
+            streamOut.seekTime(time, totalTime);
+            if (rangeDownloader != null) {
+                rangeDownloader.setPlayhead(Math.min(estimate, currentFileSize));
+            }
+        } catch (IOException e) {
+            Log.warn("Could not seek: " + e.getMessage());
+        }
+    }
+
+    // The stream ran into bytes received earlier (before a seek back, or while filling a gap): jump to the next missing ones
+    private void skipReceivedRange() throws IOException {
+        long writeOffset = chunkBatch.getWriteOffset();
+        // during a switch the server's own VIDEO_SEEK comes first, it tells where the new rendition takes over
+        if (seekPending || (switchTime >= 0 && switchOffset < 0) || writeOffset >= currentFileSize || !receivedRanges.contains(writeOffset)) {
+            return;
+        }
+        seekPending = true;
+        streamOut.seek(receivedRanges.nextMissing(writeOffset, currentFileSize));
+    }
+
+    // Reports the playback position, each report is a credit allowing the server to send further ahead
+    private void sendPlaybackDurations() {
+        if (mediaPlayer == null || media == null) {
+            return;
+        }
         double currentTime = mediaPlayer.getCurrentTime().toSeconds();
         double totalTime = media.getDuration().toSeconds();
-        System.out.println(currentTime +"; "+ totalTime);
-        out.writeDouble(currentTime);
-        out.writeDouble(totalTime);
-        out.flush();
+        if (Double.isNaN(totalTime) || Double.isInfinite(totalTime)) {
+            return;
+        }
+        lastReportedTime = currentTime;
+        if (rangeDownloader != null && totalTime > 0) {
+            // the parallel downloads follow the playhead
+            rangeDownloader.setPlayhead((long) (currentFileSize * (currentTime / totalTime)));
+        }
+        Log.debug("Playback at " + currentTime + "/" + totalTime + " s");
+        try {
+            streamOut.playback(currentTime, totalTime);
+            adaptRendition(currentTime, totalTime);
+        } catch (IOException e) {
+            Log.warn("Could not report the playback position: " + e.getMessage());
+        }
+    }
+
+    // Moves to another rendition of the title when the throughput and the media downloaded ahead call for it
+    private void adaptRendition(double currentTime, double totalTime) throws IOException {
+        if (switchTime >= 0 || totalTime <= 0 || startupReady == null || !startupReady.isDone()) {
+            return; // one switch at a time
+        }
+        long playhead = Math.min((long) (currentFileSize * (currentTime / totalTime)), currentFileSize);
+        double bufferSeconds = (receivedRanges.contiguousEnd(playhead) - playhead) / (currentFileSize / totalTime);
+        VideoMetadata next = renditions.next(bufferSeconds, System.nanoTime());
+        if (next == null || next.getId().equals(currentVideoId)) {
+            return;
+        }
+        Log.info("Switching to " + next.getTitle() + " at " + currentTime + " s, " + (long) renditions.getThroughput()
+                + " B/s, " + String.format("%.1f", bufferSeconds) + " s buffered");
+        switchTime = currentTime;
+        requestSwitch(next.getId(), currentTime);
     }
 
     private void showErrorDialog(String title, String message) {
@@ -0,0 +1,136 @@
+package inc;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Leveled logging written by a background thread: callers only queue the line, so a slow console never holds up a
+// streaming loop. When the queue is full lines are dropped and counted rather than waited for. Events fired for
+// every chunk go through a Sampler, which keeps one call in N.
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int QUEUE_SIZE = 8192;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static volatile Level level = Level.INFO;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final PrintStream out = System.out;
+
+    static {
+        Thread writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-drain"));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level level) {
+        Log.level = level;
+    }
+
+    // The level named in a configuration file, INFO if it is unknown
+    public static void setLevel(String name) {
+        try {
+            setLevel(Level.valueOf(name.trim().toUpperCase()));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            setLevel(Level.INFO);
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(Log.level) >= 0 && level != Level.OFF;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    // With the stack trace and its causes, as one entry so its lines stay together
+    public static void error(String message, Throwable error) {
+        if (!isEnabled(Level.ERROR)) {
+            return;
+        }
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        log(Level.ERROR, message + ": " + trace.toString().stripTrailing());
+    }
+
+    public static void log(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        String line = TIME.format(LocalTime.now()) + " " + level + " [" + Thread.currentThread().getName() + "] " + message;
+        if (!queue.offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void write() {
+        List<String> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            print(batch);
+        }
+    }
+
+    private static void drain() {
+        List<String> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        print(batch);
+    }
+
+    private static synchronized void print(List<String> batch) {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            out.println("(" + lost + " log lines dropped)");
+        }
+        for (String line : batch) {
+            out.println(line);
+        }
+        out.flush();
+        batch.clear();
+    }
+
+    // Logs one call in `every` from a frequent call site, the message is only built for the calls that are logged
+    public static final class Sampler {
+        private final Level level;
+        private final int every;
+        private final AtomicLong calls = new AtomicLong();
+
+        public Sampler(Level level, int every) {
+            this.level = level;
+            this.every = Math.max(1, every);
+        }
+
+        public void log(Supplier<String> message) {
+            if (isEnabled(level) && calls.getAndIncrement() % every == 0) {
+                Log.log(level, message.get() + (every > 1 ? " (1 in " + every + ")" : ""));
+            }
+        }
+    }
+}
@@ -4,30 +4,43 @@ import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class VideoMetadata implements Serializable {
+    // movie_1080.mp4, movie-720p.mp4, movie.480.mp4: encodes of movie.mp4 at these heights
+    private static final Pattern RENDITION = Pattern.compile("(.+?)[ _.-](144|240|360|480|540|576|720|1080|1440|2160|4320)p?(\\.[^.]*)?", Pattern.CASE_INSENSITIVE);
+
     private String id;
     private String title;
     private String filePath;
     private long fileSize;
+    private long lastModified;
     double duration;
+    private List<VideoMetadata> variants = List.of(); // renditions of a catalog title, lowest resolution first
 
     public VideoMetadata() {
         this.id = UUID.randomUUID().toString();
     }
 
     // Constructeurs, getters et setters
-    public VideoMetadata(Path videoPath) {
-        this.id = UUID.randomUUID().toString();
+    public VideoMetadata(Path videoPath, String relativePath, BasicFileAttributes attributes) {
         this.title = videoPath.getFileName().toString();
         this.filePath = videoPath.toString();
-        try {
-            this.fileSize = java.nio.file.Files.size(videoPath);
-        } catch (java.io.IOException e) {
-            this.fileSize = -1;
-        }
+        this.fileSize = attributes.size();
+        this.lastModified = attributes.lastModifiedTime().toMillis();
+        this.id = stableId(relativePath, fileSize, lastModified);
+    }
+
+    // Same file content at the same place in a storage directory -> same id, across restarts and across servers
+    public static String stableId(String relativePath, long fileSize, long lastModified) {
+        String identity = relativePath.replace('\\', '/') + "|" + fileSize + "|" + lastModified;
+        return UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)).toString();
     }
 
     // Getters et setters
@@ -39,6 +52,32 @@ public class VideoMetadata implements Serializable {
     public void setFilePath(String filePath) { this.filePath = filePath; }
     public long getFileSize() { return fileSize; }
     public void setFileSize(long fileSize) { this.fileSize = fileSize; }
+    public long getLastModified() { return lastModified; }
+    public void setLastModified(long lastModified) { this.lastModified = lastModified; }
+    public double getDuration() { return duration; }
+    public void setDuration(double duration) { this.duration = duration; }
+    public List<VideoMetadata> getVariants() { return variants; }
+    public void setVariants(List<VideoMetadata> variants) { this.variants = List.copyOf(variants); }
+
+    // Vertical resolution the file name announces, 0 if it names none
+    public int getHeight() {
+        Matcher rendition = title != null ? RENDITION.matcher(title) : null;
+        return rendition != null && rendition.matches() ? Integer.parseInt(rendition.group(2)) : 0;
+    }
+
+    // Average bytes per second, 0 while the duration is unknown
+    public double getBitrate() {
+        return duration > 0 ? fileSize / duration : 0;
+    }
+
+    // Title the renditions of the same content share (movie.mp4 for movie_1080.mp4), null if the name is not a rendition's
+    public static String renditionTitle(String title) {
+        Matcher rendition = RENDITION.matcher(title);
+        if (!rendition.matches()) {
+            return null;
+        }
+        return rendition.group(1) + (rendition.group(3) != null ? rendition.group(3) : "");
+    }
 
     @Override
     public String toString() {
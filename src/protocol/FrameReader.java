@@ -0,0 +1,172 @@
+package protocol;
+
+import model.VideoMetadata;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Decodes frames from a stream. next() reads a header, the caller then consumes exactly length() payload bytes
+// with the typed readers (or skipPayload() for frames it does not handle).
+public class FrameReader {
+    private final DataInputStream in;
+    private byte opcode;
+    private int length;
+
+    public FrameReader(InputStream in) {
+        this(new DataInputStream(new BufferedInputStream(in)));
+    }
+
+    private FrameReader(DataInputStream in) {
+        this.in = in;
+    }
+
+    // For non-blocking channels: takes the next complete frame out of `buffer` (in read mode),
+    // or returns null and leaves the buffer untouched when more bytes are needed. Call next() on the result.
+    public static FrameReader poll(ByteBuffer buffer) throws StreamCorruptedException {
+        if (buffer.remaining() < Protocol.HEADER_SIZE) {
+            return null;
+        }
+        int length = pendingLength(buffer);
+        if (buffer.remaining() < Protocol.HEADER_SIZE + length) {
+            return null;
+        }
+        byte[] frame = new byte[Protocol.HEADER_SIZE + length];
+        buffer.get(frame);
+        return new FrameReader(new DataInputStream(new ByteArrayInputStream(frame)));
+    }
+
+    // Payload length of the frame at the buffer's position, so the caller can size its read buffer
+    public static int pendingLength(ByteBuffer buffer) throws StreamCorruptedException {
+        int length = buffer.getInt(buffer.position() + 1);
+        if (length < 0 || length > Protocol.MAX_CONTROL_PAYLOAD) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    public byte next() throws IOException {
+        opcode = in.readByte();
+        length = in.readInt();
+        if (length < 0 || (opcode != Protocol.VIDEO_CHUNK && length > Protocol.MAX_CONTROL_PAYLOAD)) {
+            throw new StreamCorruptedException("Invalid length " + length + " for frame " + Protocol.name(opcode));
+        }
+        return opcode;
+    }
+
+    // Bytes already received that can be read without blocking
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    public byte opcode() {
+        return opcode;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Reads the peer's HELLO and checks that it speaks the same protocol version
+    public void expectHello() throws IOException {
+        if (next() != Protocol.HELLO) {
+            throw new StreamCorruptedException("Expected HELLO, got " + Protocol.name(opcode));
+        }
+        int magic = in.readInt();
+        short version = in.readShort();
+        if (magic != Protocol.MAGIC) {
+            throw new StreamCorruptedException("Not a streaming protocol peer");
+        }
+        if (version != Protocol.VERSION) {
+            throw new StreamCorruptedException("Unsupported protocol version " + version + " (expected " + Protocol.VERSION + ")");
+        }
+    }
+
+    public String readString() throws IOException {
+        return in.readUTF();
+    }
+
+    public int readInt() throws IOException {
+        return in.readInt();
+    }
+
+    public long readLong() throws IOException {
+        return in.readLong();
+    }
+
+    public double readDouble() throws IOException {
+        return in.readDouble();
+    }
+
+    public byte readByte() throws IOException {
+        return in.readByte();
+    }
+
+    public boolean readBoolean() throws IOException {
+        return in.readBoolean();
+    }
+
+    public void readFully(byte[] buffer, int offset, int length) throws IOException {
+        in.readFully(buffer, offset, length);
+    }
+
+    public VideoMetadata readVideo() throws IOException {
+        return readVideo(in);
+    }
+
+    public List<VideoMetadata> readVideos() throws IOException {
+        int count = in.readInt();
+        List<VideoMetadata> videos = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            videos.add(readVideo(in));
+        }
+        return videos;
+    }
+
+    // name -> value of a STATS_REPLY, in the server's order
+    public Map<String, Double> readStats() throws IOException {
+        int count = in.readInt();
+        Map<String, Double> stats = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            stats.put(in.readUTF(), in.readDouble());
+        }
+        return stats;
+    }
+
+    // ids of the videos removed by a CATALOG_DELTA, read after its added videos
+    public List<String> readIds() throws IOException {
+        int count = in.readInt();
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(in.readUTF());
+        }
+        return ids;
+    }
+
+    public void skipPayload() throws IOException {
+        in.skipNBytes(length);
+    }
+
+    static VideoMetadata readVideo(DataInputStream in) throws IOException {
+        VideoMetadata video = readRendition(in);
+        int count = in.readInt();
+        List<VideoMetadata> variants = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            variants.add(readRendition(in));
+        }
+        video.setVariants(variants);
+        return video;
+    }
+
+    private static VideoMetadata readRendition(DataInputStream in) throws IOException {
+        VideoMetadata video = new VideoMetadata();
+        video.setId(in.readUTF());
+        video.setTitle(in.readUTF());
+        video.setFileSize(in.readLong());
+        video.setDuration(in.readDouble());
+        return video;
+    }
+}
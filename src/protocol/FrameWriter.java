@@ -0,0 +1,274 @@
+package protocol;
+
+import model.VideoMetadata;
+
+import java.io.*;
+import java.util.List;
+import java.util.Map;
+
+// Encodes frames onto a stream. Writes are synchronized so that several threads can share one connection,
+// and nothing is sent before flush() so that a header and its payload leave in the same segment.
+public class FrameWriter {
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);
+    private final DataOutputStream body = new DataOutputStream(scratch);
+
+    public FrameWriter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    public synchronized void hello() throws IOException {
+        header(Protocol.HELLO, 6);
+        out.writeInt(Protocol.MAGIC);
+        out.writeShort(Protocol.VERSION);
+        out.flush();
+    }
+
+    public synchronized void stream(String videoId, long startOffset) throws IOException {
+        scratch.reset();
+        body.writeUTF(videoId);
+        body.writeLong(startOffset);
+        send(Protocol.STREAM);
+    }
+
+    public synchronized void range(String videoId, long offset, long length) throws IOException {
+        scratch.reset();
+        body.writeUTF(videoId);
+        body.writeLong(offset);
+        body.writeLong(length);
+        send(Protocol.RANGE);
+    }
+
+    public synchronized void manifestQuery(String videoId) throws IOException {
+        scratch.reset();
+        body.writeUTF(videoId);
+        send(Protocol.MANIFEST_QUERY);
+    }
+
+    public synchronized void segment(String videoId, int segment) throws IOException {
+        scratch.reset();
+        body.writeUTF(videoId);
+        body.writeInt(segment);
+        send(Protocol.SEGMENT);
+    }
+
+    public synchronized void switchRendition(String videoId, double time) throws IOException {
+        scratch.reset();
+        body.writeUTF(videoId);
+        body.writeDouble(time);
+        send(Protocol.SWITCH);
+    }
+
+    public synchronized void seekTime(double time, double totalTime) throws IOException {
+        header(Protocol.SEEK_TIME, 16);
+        out.writeDouble(time);
+        out.writeDouble(totalTime);
+        out.flush();
+    }
+
+    public synchronized void seek(long offset) throws IOException {
+        header(Protocol.SEEK, 8);
+        out.writeLong(offset);
+        out.flush();
+    }
+
+    public synchronized void pong(long stamp) throws IOException {
+        header(Protocol.PONG, 8);
+        out.writeLong(stamp);
+        out.flush();
+    }
+
+    public synchronized void playback(double currentTime, double totalTime) throws IOException {
+        header(Protocol.PLAYBACK, 16);
+        out.writeDouble(currentTime);
+        out.writeDouble(totalTime);
+        out.flush();
+    }
+
+    public synchronized void exit(boolean keepConnection) throws IOException {
+        header(Protocol.EXIT, 1);
+        out.writeBoolean(keepConnection);
+        out.flush();
+    }
+
+    public synchronized void catalogQuery(int offset, int limit, byte sort, String mediaType, String directory) throws IOException {
+        scratch.reset();
+        body.writeInt(offset);
+        body.writeInt(limit);
+        body.writeByte(sort);
+        body.writeUTF(mediaType);
+        body.writeUTF(directory);
+        send(Protocol.CATALOG_QUERY);
+    }
+
+    public synchronized void catalogPage(int offset, int total, List<VideoMetadata> videos) throws IOException {
+        scratch.reset();
+        body.writeInt(offset);
+        body.writeInt(total);
+        body.writeInt(videos.size());
+        for (VideoMetadata video : videos) {
+            writeVideo(body, video);
+        }
+        send(Protocol.CATALOG_PAGE);
+    }
+
+    public synchronized void catalogDelta(List<VideoMetadata> added, List<VideoMetadata> removed) throws IOException {
+        scratch.reset();
+        body.writeInt(added.size());
+        for (VideoMetadata video : added) {
+            writeVideo(body, video);
+        }
+        body.writeInt(removed.size());
+        for (VideoMetadata video : removed) {
+            body.writeUTF(video.getId());
+        }
+        send(Protocol.CATALOG_DELTA);
+    }
+
+    public synchronized void videoStart(String mediaType, String videoId, long fileSize, long startOffset) throws IOException {
+        scratch.reset();
+        body.writeUTF(mediaType);
+        body.writeUTF(videoId);
+        body.writeLong(fileSize);
+        body.writeLong(startOffset);
+        send(Protocol.VIDEO_START);
+    }
+
+    public synchronized void videoSeek(long offset) throws IOException {
+        header(Protocol.VIDEO_SEEK, 8);
+        out.writeLong(offset);
+        out.flush();
+    }
+
+    public synchronized void ping(long stamp) throws IOException {
+        header(Protocol.PING, 8);
+        out.writeLong(stamp);
+        out.flush();
+    }
+
+    // Header only: the caller writes exactly `length` payload bytes to the underlying socket right after flush()
+    public synchronized void chunkHeader(int length) throws IOException {
+        header(Protocol.VIDEO_CHUNK, length);
+    }
+
+    public synchronized void chunk(byte[] buffer, int offset, int length) throws IOException {
+        header(Protocol.VIDEO_CHUNK, length);
+        out.write(buffer, offset, length);
+        out.flush();
+    }
+
+    // Frames without payload (VIDEO_END, STATS)
+    public synchronized void signal(byte opcode) throws IOException {
+        header(opcode, 0);
+        out.flush();
+    }
+
+    public synchronized void redirect(String host, int port) throws IOException {
+        scratch.reset();
+        body.writeUTF(host);
+        body.writeInt(port);
+        send(Protocol.REDIRECT);
+    }
+
+    public synchronized void busy(int retryAfterMillis, String reason) throws IOException {
+        scratch.reset();
+        body.writeInt(retryAfterMillis);
+        body.writeUTF(reason);
+        send(Protocol.BUSY);
+    }
+
+    // The segments of a video version, starts and times of the same length (none when the video is not held)
+    public synchronized void manifest(String videoId, long version, long fileSize, double duration, long[] starts, double[] times) throws IOException {
+        scratch.reset();
+        body.writeUTF(videoId);
+        body.writeLong(version);
+        body.writeLong(fileSize);
+        body.writeDouble(duration);
+        body.writeInt(starts.length);
+        for (int i = 0; i < starts.length; i++) {
+            body.writeLong(starts[i]);
+            body.writeDouble(times[i]);
+        }
+        send(Protocol.MANIFEST);
+    }
+
+    public synchronized void nodeRegister(String host, int port) throws IOException {
+        scratch.reset();
+        body.writeUTF(host);
+        body.writeInt(port);
+        send(Protocol.NODE_REGISTER);
+    }
+
+    public synchronized void nodeLoad(int sessions, long egressBytesPerSecond) throws IOException {
+        header(Protocol.NODE_LOAD, 12);
+        out.writeInt(sessions);
+        out.writeLong(egressBytesPerSecond);
+        out.flush();
+    }
+
+    public synchronized void statsReply(Map<String, Double> stats) throws IOException {
+        scratch.reset();
+        body.writeInt(stats.size());
+        for (Map.Entry<String, Double> stat : stats.entrySet()) {
+            body.writeUTF(stat.getKey());
+            body.writeDouble(stat.getValue());
+        }
+        send(Protocol.STATS_REPLY);
+    }
+
+    public synchronized void replicate(VideoMetadata video, String sourceHost, int sourcePort) throws IOException {
+        scratch.reset();
+        writeVideo(body, video);
+        body.writeUTF(sourceHost);
+        body.writeInt(sourcePort);
+        send(Protocol.REPLICATE);
+    }
+
+    public synchronized void dropReplica(String videoId) throws IOException {
+        scratch.reset();
+        body.writeUTF(videoId);
+        send(Protocol.DROP_REPLICA);
+    }
+
+    public synchronized void videoError(String message) throws IOException {
+        scratch.reset();
+        body.writeUTF(message);
+        send(Protocol.VIDEO_ERROR);
+    }
+
+    public synchronized void error(String message) throws IOException {
+        scratch.reset();
+        body.writeUTF(message);
+        send(Protocol.ERROR);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    static void writeVideo(DataOutputStream body, VideoMetadata video) throws IOException {
+        writeRendition(body, video);
+        body.writeInt(video.getVariants().size());
+        for (VideoMetadata variant : video.getVariants()) {
+            writeRendition(body, variant);
+        }
+    }
+
+    private static void writeRendition(DataOutputStream body, VideoMetadata video) throws IOException {
+        body.writeUTF(video.getId());
+        body.writeUTF(video.getTitle());
+        body.writeLong(video.getFileSize());
+        body.writeDouble(video.getDuration());
+    }
+
+    private void header(byte opcode, int length) throws IOException {
+        out.writeByte(opcode);
+        out.writeInt(length);
+    }
+
+    private void send(byte opcode) throws IOException {
+        header(opcode, scratch.size());
+        scratch.writeTo(out);
+        out.flush();
+    }
+}
@@ -0,0 +1,97 @@
+package protocol;
+
+// Wire constants shared by the server and the client.
+// Every message is a frame: [opcode: 1 byte][payload length: 4 bytes][payload]
+public final class Protocol {
+    public static final int MAGIC = 0x56535450; // "VSTP"
+    public static final short VERSION = 14;
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_CONTROL_PAYLOAD = 16 * 1024 * 1024; // upper bound for anything that is not a chunk
+
+    // handshake, sent by both sides: int magic, short version
+    public static final byte HELLO = 0x01;
+
+    // client -> server
+    public static final byte STREAM = 0x10;       // utf videoId, long startOffset (resume)
+    public static final byte PLAYBACK = 0x11;     // double currentTime, double totalTime, sent as playback advances (time credit)
+    public static final byte EXIT = 0x12;         // boolean keepConnection
+    public static final byte SEEK = 0x13;         // long offset, repositions the current stream
+    public static final byte PONG = 0x14;         // long stamp, echoes a PING as soon as it is read
+    public static final byte CATALOG_QUERY = 0x15; // int offset, int limit, byte sort, utf mediaType, utf directory ("" = any)
+    public static final byte RANGE = 0x16;        // utf videoId, long offset, long length: streams just these bytes, without waiting for credit
+    public static final byte STATS = 0x17;        // empty, answered with STATS_REPLY
+    public static final byte SEEK_TIME = 0x18;    // double time, double totalTime: SEEK to the offset the server's index gives for the time
+    public static final byte MANIFEST_QUERY = 0x19; // utf videoId, answered with MANIFEST
+    public static final byte SEGMENT = 0x1A;      // utf videoId, int segment: a RANGE of the segment of the last MANIFEST
+    public static final byte SWITCH = 0x1B;       // utf videoId, double time: STREAM another rendition, its header, then a VIDEO_SEEK to the time (even where it follows on)
+
+    // server -> client
+    public static final byte CATALOG_PAGE = 0x20; // int offset, int total matching, int count, count * video
+                                                  // video: utf id, utf title, long fileSize, double duration, int count, count * rendition (the same 4 fields)
+    public static final byte VIDEO_START = 0x21;  // utf mediaType, utf videoId, long fileSize, long startOffset
+    public static final byte VIDEO_CHUNK = 0x22;  // raw file bytes following the previous ones, the frame length is the chunk length
+    public static final byte VIDEO_END = 0x25;    // empty
+    public static final byte VIDEO_ERROR = 0x26;  // utf message
+    public static final byte CATALOG_DELTA = 0x27; // int addedCount, addedCount * video, int removedCount, removedCount * utf videoId
+    public static final byte VIDEO_SEEK = 0x28;   // long offset, the chunks that follow continue from there
+    public static final byte PING = 0x29;         // long stamp, measures the round trip time while streaming
+    public static final byte REDIRECT = 0x2A;     // utf host, int port: ask that node for the video just requested (STREAM or RANGE)
+    public static final byte STATS_REPLY = 0x2B;  // int count, count * (utf name, double value): server-wide then "session." metrics
+    public static final byte BUSY = 0x2C;         // int retryAfterMillis, utf reason: the STREAM was refused, ask again after the delay
+    public static final byte MANIFEST = 0x2D;     // utf videoId, long version, long fileSize, double duration, int count,
+                                                  // count * (long start, double time or -1): the video's segments, none if it is not held here
+
+    // child node -> central server, on a connection opened by the node
+    public static final byte NODE_REGISTER = 0x30; // utf host, int port where the node serves clients; then CATALOG_DELTA frames
+    public static final byte NODE_LOAD = 0x31;    // int sessions, long egressBytesPerSecond, every second
+
+    // central server -> child node, on the same connection
+    public static final byte REPLICATE = 0x32;    // video, utf sourceHost, int sourcePort: keep a copy of this hot video
+    public static final byte DROP_REPLICA = 0x33; // utf videoId: the video cooled down, its copy can go
+    public static final byte ERROR = 0x7F;        // utf message, the connection is closed afterwards
+
+    // catalog orders
+    public static final byte SORT_TITLE = 0;
+    public static final byte SORT_SIZE = 1;
+    public static final byte SORT_DURATION = 2;
+    public static final byte SORT_RECENT = 3; // most recently modified first
+
+    private Protocol() {
+    }
+
+    public static String name(byte opcode) {
+        return switch (opcode) {
+            case HELLO -> "HELLO";
+            case STREAM -> "STREAM";
+            case PLAYBACK -> "PLAYBACK";
+            case EXIT -> "EXIT";
+            case SEEK -> "SEEK";
+            case PONG -> "PONG";
+            case CATALOG_QUERY -> "CATALOG_QUERY";
+            case RANGE -> "RANGE";
+            case STATS -> "STATS";
+            case SEEK_TIME -> "SEEK_TIME";
+            case MANIFEST_QUERY -> "MANIFEST_QUERY";
+            case SEGMENT -> "SEGMENT";
+            case SWITCH -> "SWITCH";
+            case CATALOG_PAGE -> "CATALOG_PAGE";
+            case VIDEO_START -> "VIDEO_START";
+            case VIDEO_CHUNK -> "VIDEO_CHUNK";
+            case VIDEO_END -> "VIDEO_END";
+            case VIDEO_ERROR -> "VIDEO_ERROR";
+            case CATALOG_DELTA -> "CATALOG_DELTA";
+            case VIDEO_SEEK -> "VIDEO_SEEK";
+            case PING -> "PING";
+            case REDIRECT -> "REDIRECT";
+            case STATS_REPLY -> "STATS_REPLY";
+            case BUSY -> "BUSY";
+            case MANIFEST -> "MANIFEST";
+            case NODE_REGISTER -> "NODE_REGISTER";
+            case NODE_LOAD -> "NODE_LOAD";
+            case REPLICATE -> "REPLICATE";
+            case DROP_REPLICA -> "DROP_REPLICA";
+            case ERROR -> "ERROR";
+            default -> String.format("0x%02X", opcode);
+        };
+    }
+}
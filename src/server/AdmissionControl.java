@@ -0,0 +1,145 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Decides whether a new stream may start. Past the configured limits (streams, egress, file handles, disk reads
+// behind the segment cache) a STREAM waits a little for a stream to end, then is refused with BUSY and a delay to
+// retry after: the viewers already watching keep their quality rather than every session degrading together.
+// A viewer switching videos keeps its place, and RANGE transfers complete streams that were already admitted.
+class AdmissionControl {
+    private final VideoStreamingServer server;
+    private final int maxStreams; // 0 for no limit
+    private final double maxEgressFraction; // of the egress cap, when egress is capped
+    private final double maxFileDescriptorFraction;
+    private final int maxPendingSegmentLoads; // 0 for no limit
+    private final long queueMillis; // how long a refused STREAM waits for a place before BUSY, 0 to refuse at once
+    private final int maxQueued;
+    private final int retryAfterMillis;
+    private final OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+
+    private final ArrayDeque<Ticket> queue = new ArrayDeque<>(); // guarded by this
+    private int streams = 0; // admitted and not ended, guarded by this
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    AdmissionControl(VideoStreamingServer server, int maxStreams, double maxEgressFraction, double maxFileDescriptorFraction,
+                     int maxPendingSegmentLoads, long queueMillis, int maxQueued, int retryAfterMillis) {
+        this.server = server;
+        this.maxStreams = maxStreams;
+        this.maxEgressFraction = maxEgressFraction;
+        this.maxFileDescriptorFraction = maxFileDescriptorFraction;
+        this.maxPendingSegmentLoads = maxPendingSegmentLoads;
+        this.queueMillis = queueMillis;
+        this.maxQueued = maxQueued;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    // Takes a place for a new stream: null once admitted, otherwise the limit that was reached
+    synchronized String admit() {
+        drain();
+        String limit = queue.isEmpty() ? limitReached() : "queued streams ahead";
+        if (limit == null) {
+            streams++;
+            admitted.increment();
+        }
+        return limit;
+    }
+
+    // Waits for a place: admit runs once one is taken for the ticket, unless it is withdrawn first. Null if the queue is full.
+    synchronized Ticket enqueue(Consumer<Ticket> admit) {
+        if (queueMillis <= 0 || queue.size() >= maxQueued) {
+            return null;
+        }
+        Ticket ticket = new Ticket(admit);
+        queue.add(ticket);
+        queued.increment();
+        return ticket;
+    }
+
+    // Gives up waiting, false if the ticket was admitted meanwhile (places freed since are handed out first)
+    synchronized boolean withdraw(Ticket ticket) {
+        drain();
+        return queue.remove(ticket);
+    }
+
+    // An admitted stream ended: its place goes to the oldest waiting one
+    synchronized void release() {
+        streams = Math.max(0, streams - 1);
+        drain();
+    }
+
+    // Admits the waiting streams in order for as long as the limits allow, which they may again without any stream
+    // ending (egress, files, disk reads)
+    private void drain() {
+        while (!queue.isEmpty() && limitReached() == null) {
+            streams++;
+            admitted.increment();
+            Ticket ticket = queue.poll();
+            ticket.admit.accept(ticket);
+        }
+    }
+
+    // Delay for a refused client, spread so that the refused do not all come back at once
+    int refuse() {
+        refused.increment();
+        return retryAfterMillis + ThreadLocalRandom.current().nextInt(retryAfterMillis / 2 + 1);
+    }
+
+    private String limitReached() {
+        if (maxStreams > 0 && streams >= maxStreams) {
+            return "too many streams";
+        }
+        long egressCap = server.getEgressScheduler().getRateBytes();
+        if (egressCap > 0 && maxEgressFraction > 0 && server.getEgressRate() >= maxEgressFraction * egressCap) {
+            return "egress bandwidth exhausted";
+        }
+        if (maxFileDescriptorFraction > 0 && system instanceof com.sun.management.UnixOperatingSystemMXBean unix
+                && unix.getOpenFileDescriptorCount() >= maxFileDescriptorFraction * unix.getMaxFileDescriptorCount()) {
+            return "too many open files";
+        }
+        SegmentCache cache = server.getSegmentCache();
+        if (maxPendingSegmentLoads > 0 && cache.isEnabled() && cache.getPendingLoads() >= maxPendingSegmentLoads) {
+            return "disk reads backlogged";
+        }
+        return null;
+    }
+
+    long getQueueMillis() {
+        return queueMillis;
+    }
+
+    synchronized int getStreams() {
+        return streams;
+    }
+
+    synchronized int getQueued() {
+        return queue.size();
+    }
+
+    long getAdmitted() {
+        return admitted.sum();
+    }
+
+    long getQueuedTotal() {
+        return queued.sum();
+    }
+
+    long getRefused() {
+        return refused.sum();
+    }
+
+    static final class Ticket {
+        private final Consumer<Ticket> admit;
+
+        private Ticket(Consumer<Ticket> admit) {
+            this.admit = admit;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package server;
+
+import inc.CSVReader;
+import inc.Log;
+import model.VideoMetadata;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Persisted catalog of one storage directory (a tab separated file at its root). A restart keeps the video ids and
+// durations, and only re-examines the files whose size, modification time or inode changed since they were indexed.
+class CatalogIndex {
+    static final String FILE_NAME = ".catalog.tsv";
+    private static final double NO_DURATION = -1; // recorded for a file whose duration could not be read, 0 is not read yet
+
+    private final Path storageDirectory;
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>(); // by path relative to the storage directory
+    private int reused = 0;
+
+    CatalogIndex(Path storageDirectory) {
+        this.storageDirectory = storageDirectory;
+        this.file = storageDirectory.resolve(FILE_NAME);
+        load();
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        // id, size, last modified, file key, duration, relative path
+        for (String[] row : CSVReader.readCSV(file.toString(), "\t", "\n")) {
+            if (row.length < 6) {
+                continue;
+            }
+            try {
+                entries.put(row[5], new Entry(row[0], Long.parseLong(row[1]), Long.parseLong(row[2]), row[3], Double.parseDouble(row[4])));
+            } catch (NumberFormatException e) {
+                Log.warn("skipping corrupted index line for " + row[5]);
+            }
+        }
+    }
+
+    // The indexed video if the file is unchanged since it was recorded, otherwise a freshly examined one
+    VideoMetadata resolve(Path path, BasicFileAttributes attributes) {
+        return resolve(path, attributes, null);
+    }
+
+    // The same under the id given (a replica keeps the one of its original), null for an id of the index's own
+    VideoMetadata resolve(Path path, BasicFileAttributes attributes, String id) {
+        String relativePath = relativize(path);
+        String fileKey = fileKey(attributes);
+        Entry entry = entries.get(relativePath);
+        VideoMetadata video;
+        double duration;
+        if (entry != null && entry.size == attributes.size() && entry.lastModified == attributes.lastModifiedTime().toMillis() && entry.fileKey.equals(fileKey)) {
+            video = new VideoMetadata();
+            video.setId(id != null ? id : entry.id);
+            video.setTitle(path.getFileName().toString());
+            video.setFilePath(path.toString());
+            video.setFileSize(entry.size);
+            video.setLastModified(entry.lastModified);
+            duration = entry.duration != 0 ? entry.duration : readDuration(path); // indexed before durations were read
+            reused++;
+        } else {
+            video = new VideoMetadata(path, relativePath, attributes);
+            if (id != null) {
+                video.setId(id);
+            }
+            duration = readDuration(path);
+        }
+        video.setDuration(Math.max(0, duration));
+        entries.put(relativePath, new Entry(video.getId(), video.getFileSize(), video.getLastModified(), fileKey, duration));
+        return video;
+    }
+
+    void remove(Path path) {
+        entries.remove(relativize(path));
+    }
+
+    // Drops the entries of files that were not found by a full scan
+    void retain(Collection<Path> paths) {
+        Set<String> present = new HashSet<>();
+        for (Path path : paths) {
+            present.add(relativize(path));
+        }
+        entries.keySet().retainAll(present);
+    }
+
+    // The index itself and its temporary copy, which live among the videos but are not content
+    static boolean isIndexFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.equals(FILE_NAME) || name.equals(FILE_NAME + ".tmp");
+    }
+
+    int getReused() {
+        return reused;
+    }
+
+    // Written aside then moved over the old index, so a crash never leaves a truncated index behind
+    synchronized void save() {
+        Path temporary = file.resolveSibling(FILE_NAME + ".tmp");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Entry> indexed : entries.entrySet()) {
+                Entry entry = indexed.getValue();
+                writer.println(entry.id + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.fileKey + "\t" + entry.duration + "\t" + indexed.getKey());
+            }
+        } catch (IOException e) {
+            Log.warn("could not write the catalog index of " + storageDirectory + ": " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.warn("could not write the catalog index of " + storageDirectory + ": " + e.getMessage());
+        }
+    }
+
+    // Parsed once per version of the file, recorded even when the file has none
+    private static double readDuration(Path path) {
+        double duration = Mp4Index.readDuration(path);
+        return duration > 0 ? duration : NO_DURATION;
+    }
+
+    private String relativize(Path path) {
+        return storageDirectory.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static String fileKey(BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return key == null ? "-" : key.toString();
+    }
+
+    private static final class Entry {
+        private final String id;
+        private final long size;
+        private final long lastModified;
+        private final String fileKey;
+        private final double duration;
+
+        private Entry(String id, long size, long lastModified, String fileKey, double duration) {
+            this.id = id;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.duration = duration;
+        }
+    }
+}
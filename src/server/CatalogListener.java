@@ -0,0 +1,11 @@
+package server;
+
+import model.VideoMetadata;
+
+import java.util.List;
+
+// Receives catalog deltas: from a child server when its storage directory changes, and from the central server
+// once its index has been updated. A modified file is reported as removed and added again.
+interface CatalogListener {
+    void catalogChanged(List<VideoMetadata> added, List<VideoMetadata> removed);
+}
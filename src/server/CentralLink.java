@@ -0,0 +1,121 @@
+package server;
+
+import inc.Log;
+import model.VideoMetadata;
+import protocol.FrameReader;
+import protocol.FrameWriter;
+import protocol.Protocol;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+
+// Connection of a child node to the central server: registers where the node serves clients, sends its catalog and
+// then every change of it, and reports its load each second, while the central server's replication commands are
+// read on a second thread. Reconnects whenever the central server goes away.
+class CentralLink {
+    private static final long LOAD_INTERVAL_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 2000;
+    private static final int CATALOG_BATCH = 500; // videos per frame, far below the control frame bound
+
+    private final VideoStreamingServer server;
+    private final String centralHost;
+    private final int centralPort;
+    private final String nodeHost;
+    private final int nodePort;
+    private volatile FrameWriter out; // null while disconnected
+
+    CentralLink(VideoStreamingServer server, String centralHost, int centralPort, String nodeHost, int nodePort) {
+        this.server = server;
+        this.centralHost = centralHost;
+        this.centralPort = centralPort;
+        this.nodeHost = nodeHost;
+        this.nodePort = nodePort;
+    }
+
+    void start() {
+        server.getCentralServer().addCatalogListener(this::forward);
+        Thread link = new Thread(this::run, "central-link");
+        link.setDaemon(true);
+        link.start();
+    }
+
+    private void run() {
+        while (true) {
+            try (Socket socket = new Socket(centralHost, centralPort)) {
+                FrameWriter writer = new FrameWriter(socket.getOutputStream());
+                FrameReader reader = new FrameReader(socket.getInputStream());
+                writer.hello();
+                reader.expectHello();
+                writer.nodeRegister(nodeHost, nodePort);
+                synchronized (this) {
+                    // the full catalog then the deltas, in this order
+                    sendDelta(writer, server.getCentralServer().getAllAvailableVideos(), List.of());
+                    out = writer;
+                }
+                Log.info("Registered with the central server " + centralHost + ":" + centralPort);
+                Thread commands = new Thread(() -> readCommands(socket, reader), "central-commands");
+                commands.setDaemon(true);
+                commands.start();
+                while (!socket.isClosed()) {
+                    writer.nodeLoad(server.getSessionCount(), server.getEgressRate());
+                    Thread.sleep(LOAD_INTERVAL_MILLIS);
+                }
+            } catch (IOException e) {
+                Log.warn("Central server " + centralHost + ":" + centralPort + " unreachable: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                out = null;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void readCommands(Socket socket, FrameReader in) {
+        ReplicaStore replicas = server.getReplicaStore();
+        try {
+            while (true) {
+                switch (in.next()) {
+                    case Protocol.REPLICATE -> replicas.fetch(in.readVideo(), in.readString(), in.readInt());
+                    case Protocol.DROP_REPLICA -> replicas.drop(in.readString());
+                    default -> in.skipPayload();
+                }
+            }
+        } catch (IOException e) {
+            try {
+                socket.close(); // the load reports stop, then the link reconnects
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private synchronized void forward(List<VideoMetadata> added, List<VideoMetadata> removed) {
+        FrameWriter writer = out;
+        if (writer == null) {
+            return; // the next registration sends the whole catalog
+        }
+        try {
+            sendDelta(writer, added, removed);
+        } catch (IOException e) {
+            Log.warn("Could not forward a catalog change: " + e.getMessage());
+        }
+    }
+
+    // In frames of at most CATALOG_BATCH videos added and ids removed, the central server applies each as it comes
+    private static void sendDelta(FrameWriter writer, List<VideoMetadata> added, List<VideoMetadata> removed) throws IOException {
+        int from = 0;
+        do {
+            writer.catalogDelta(slice(added, from), slice(removed, from));
+            from += CATALOG_BATCH;
+        } while (from < Math.max(added.size(), removed.size()));
+    }
+
+    private static List<VideoMetadata> slice(List<VideoMetadata> videos, int from) {
+        return videos.subList(Math.min(from, videos.size()), Math.min(from + CATALOG_BATCH, videos.size()));
+    }
+}
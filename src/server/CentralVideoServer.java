@@ -1,26 +1,260 @@
 package server;
 
 import model.VideoMetadata;
+import protocol.Protocol;
 
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.*;
+import java.util.concurrent.*;
 
 public class CentralVideoServer {
+    private static final int MAX_CACHED_VIEWS = 64;
+
+    private final Path mediaRoot; // the storage directories are under it
     private final List<ChildVideoServer> childServers;
+    // id -> video across every child, and the immutable list of every file, both kept in step with the children
+    private final ConcurrentHashMap<String, VideoMetadata> videosById = new ConcurrentHashMap<>();
+    private volatile List<VideoMetadata> catalog = List.of();
+    private final List<CatalogListener> listeners = new CopyOnWriteArrayList<>();
+    // the catalog handed out to clients: the renditions of a title stored side by side (movie_1080.mp4, movie_480.mp4
+    // in one directory) listed once, as their best rendition with all of them as variants. Grouped per directory, a
+    // title matches the directory filter of a query with every rendition it can switch to.
+    private final Map<String, List<VideoMetadata>> renditions = new HashMap<>(); // group key -> files, guarded by this
+    private final Map<String, VideoMetadata> titleEntries = new HashMap<>(); // group key -> its entry, guarded by this
+    private volatile List<VideoMetadata> titles = List.of();
+    private final List<CatalogListener> titleListeners = new CopyOnWriteArrayList<>();
+    // sorted and filtered views of the current snapshot, shared by every client paging through the same query
+    private final ConcurrentHashMap<String, List<VideoMetadata>> views = new ConcurrentHashMap<>();
 
     public CentralVideoServer() {
+        this(Paths.get("etc/media"));
+    }
+
+    public CentralVideoServer(Path mediaRoot) {
+        this.mediaRoot = mediaRoot;
         childServers = new ArrayList<>();
     }
 
+    public Path getMediaRoot() {
+        return mediaRoot;
+    }
+
     public void addDirectoryPath(String path, String mediaType) {
-        path = "etc/media/"+ path;
-        childServers.add(new ChildVideoServer(Paths.get(path), mediaType));
+        addDirectoryPaths(new String[] { path }, mediaType);
+    }
+
+    // The directories are scanned in parallel, one thread each, then added in the given order
+    public void addDirectoryPaths(String[] paths, String mediaType) {
+        ExecutorService scanners = Executors.newFixedThreadPool(Math.max(1, paths.length));
+        try {
+            List<Future<ChildVideoServer>> scans = new ArrayList<>();
+            for (String path : paths) {
+                scans.add(scanners.submit(() -> new ChildVideoServer(mediaRoot.resolve(path), mediaType)));
+            }
+            for (Future<ChildVideoServer> scan : scans) {
+                ChildVideoServer childServer = scan.get();
+                childServers.add(childServer);
+                updateIndex(childServer.getAvailableVideos(), List.of());
+                childServer.watch(this::updateIndex);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not scan the video directories", e.getCause());
+        } finally {
+            scanners.shutdown();
+        }
+    }
+
+    // Notified after each change of the index, with the videos that actually entered or left the catalog
+    public void addCatalogListener(CatalogListener listener) {
+        listeners.add(listener);
     }
 
+    // Same, for the catalog of titles clients see
+    public void addTitleListener(CatalogListener listener) {
+        titleListeners.add(listener);
+    }
+
+    // Every file, renditions apart
     public List<VideoMetadata> getAllAvailableVideos() {
-        return childServers.stream()
-                .flatMap(server -> server.getAvailableVideos().stream())
-                .collect(Collectors.toList());
+        return catalog;
+    }
+
+    public List<VideoMetadata> getTitles() {
+        return titles;
+    }
+
+    public VideoMetadata getVideo(String id) {
+        return videosById.get(id);
+    }
+
+    // The catalog in the given order, restricted to a media type and/or a directory under the media root ("" = any).
+    // Built once per snapshot and query, then each page is a slice of it.
+    public List<VideoMetadata> query(byte sort, String mediaType, String directory) {
+        String key = sort + "|" + mediaType + "|" + directory;
+        List<VideoMetadata> view = views.get(key);
+        if (view != null) {
+            return view;
+        }
+        List<VideoMetadata> snapshot = titles;
+        Path prefix = directory.isEmpty() ? null : mediaRoot.resolve(directory).normalize();
+        List<VideoMetadata> selected = new ArrayList<>();
+        for (VideoMetadata video : snapshot) {
+            if (matches(video, mediaType, prefix)) {
+                selected.add(video);
+            }
+        }
+        selected.sort(comparator(sort));
+        view = Collections.unmodifiableList(selected);
+        if (views.size() >= MAX_CACHED_VIEWS) {
+            views.clear();
+        }
+        views.put(key, view);
+        if (snapshot != titles) { // the catalog changed meanwhile, the view is already stale
+            views.remove(key, view);
+        }
+        return view;
+    }
+
+    // True if the video is in the results of a query with these filters
+    public boolean matches(VideoMetadata video, String mediaType, String directory) {
+        return matches(video, mediaType, directory.isEmpty() ? null : mediaRoot.resolve(directory).normalize());
+    }
+
+    private static boolean matches(VideoMetadata video, String mediaType, Path prefix) {
+        if (!mediaType.isEmpty() && !video.getTitle().toLowerCase().endsWith(mediaType.toLowerCase())) {
+            return false;
+        }
+        if (prefix == null) {
+            return true;
+        }
+        // videos of child nodes are not under this server's directories
+        return video.getFilePath() != null && Paths.get(video.getFilePath()).normalize().startsWith(prefix);
+    }
+
+    private static Comparator<VideoMetadata> comparator(byte sort) {
+        Comparator<VideoMetadata> byTitle = Comparator.comparing(VideoMetadata::getTitle, String.CASE_INSENSITIVE_ORDER);
+        return switch (sort) {
+            case Protocol.SORT_SIZE -> Comparator.comparingLong(VideoMetadata::getFileSize).thenComparing(byTitle);
+            case Protocol.SORT_DURATION -> Comparator.comparingDouble(VideoMetadata::getDuration).thenComparing(byTitle);
+            case Protocol.SORT_RECENT -> Comparator.comparingLong(VideoMetadata::getLastModified).reversed().thenComparing(byTitle);
+            default -> byTitle.thenComparing(VideoMetadata::getId);
+        };
+    }
+
+    // Applies a change of one child's videos to the index, then publishes the new catalog snapshot in one step
+    synchronized void updateIndex(List<VideoMetadata> added, List<VideoMetadata> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        Set<String> removedIds = new HashSet<>();
+        List<VideoMetadata> removedVideos = new ArrayList<>();
+        for (VideoMetadata video : removed) {
+            if (videosById.remove(video.getId(), video)) {
+                removedIds.add(video.getId());
+                removedVideos.add(video);
+            }
+        }
+        List<VideoMetadata> next = new ArrayList<>(catalog.size() + added.size());
+        for (VideoMetadata video : catalog) {
+            if (!removedIds.contains(video.getId())) {
+                next.add(video);
+            }
+        }
+        List<VideoMetadata> addedVideos = new ArrayList<>();
+        for (VideoMetadata video : added) {
+            if (videosById.putIfAbsent(video.getId(), video) == null) {
+                next.add(video);
+                addedVideos.add(video);
+            }
+        }
+        catalog = Collections.unmodifiableList(next);
+        updateTitles(addedVideos, removedVideos);
+        views.clear();
+
+        for (CatalogListener listener : listeners) {
+            listener.catalogChanged(addedVideos, removedVideos);
+        }
+    }
+
+    // Regroups the titles whose renditions changed; a file that is no rendition is its own title
+    private void updateTitles(List<VideoMetadata> addedVideos, List<VideoMetadata> removedVideos) {
+        Set<VideoMetadata> removedTitles = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<VideoMetadata> addedTitles = new ArrayList<>();
+        Set<String> regrouped = new LinkedHashSet<>();
+        for (VideoMetadata video : removedVideos) {
+            String key = groupKey(video);
+            if (key == null) {
+                removedTitles.add(video);
+            } else if (renditions.containsKey(key)) {
+                renditions.get(key).remove(video);
+                regrouped.add(key);
+            }
+        }
+        for (VideoMetadata video : addedVideos) {
+            String key = groupKey(video);
+            if (key == null) {
+                addedTitles.add(video);
+            } else {
+                renditions.computeIfAbsent(key, group -> new ArrayList<>()).add(video);
+                regrouped.add(key);
+            }
+        }
+        for (String key : regrouped) {
+            VideoMetadata previous = titleEntries.remove(key);
+            if (previous != null) {
+                removedTitles.add(previous);
+            }
+            List<VideoMetadata> files = renditions.get(key);
+            if (files.isEmpty()) {
+                renditions.remove(key);
+                continue;
+            }
+            VideoMetadata entry = titleEntry(files);
+            titleEntries.put(key, entry);
+            addedTitles.add(entry);
+        }
+
+        List<VideoMetadata> next = new ArrayList<>(titles.size() + addedTitles.size());
+        for (VideoMetadata title : titles) {
+            if (!removedTitles.contains(title)) {
+                next.add(title);
+            }
+        }
+        next.addAll(addedTitles);
+        titles = Collections.unmodifiableList(next);
+
+        for (CatalogListener listener : titleListeners) {
+            listener.catalogChanged(addedTitles, new ArrayList<>(removedTitles));
+        }
+    }
+
+    // Directory and shared title of a rendition, null for a file that is no rendition. The files of child nodes have no
+    // path here, they are grouped among themselves.
+    private static String groupKey(VideoMetadata video) {
+        String title = VideoMetadata.renditionTitle(video.getTitle());
+        if (title == null) {
+            return null;
+        }
+        Path parent = video.getFilePath() == null ? null : Paths.get(video.getFilePath()).normalize().getParent();
+        return (parent == null ? "" : parent.toString()) + "|" + title.toLowerCase();
+    }
+
+    // The best rendition under the shared title, streamed when a client asks for the title without choosing
+    private static VideoMetadata titleEntry(List<VideoMetadata> files) {
+        List<VideoMetadata> variants = new ArrayList<>(files);
+        variants.sort(Comparator.comparingInt(VideoMetadata::getHeight).thenComparingLong(VideoMetadata::getFileSize).thenComparing(VideoMetadata::getId));
+        VideoMetadata best = variants.get(variants.size() - 1);
+        VideoMetadata entry = new VideoMetadata();
+        entry.setId(best.getId());
+        entry.setTitle(VideoMetadata.renditionTitle(best.getTitle()));
+        entry.setFilePath(best.getFilePath());
+        entry.setFileSize(best.getFileSize());
+        entry.setLastModified(variants.stream().mapToLong(VideoMetadata::getLastModified).max().orElse(0));
+        entry.setDuration(best.getDuration());
+        entry.setVariants(variants);
+        return entry;
     }
-}
\ No newline at end of file
+}
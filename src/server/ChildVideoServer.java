@@ -1,36 +1,192 @@
 package server;
 
+import inc.Log;
 import model.VideoMetadata;
 
 import java.io.*;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.*;
 
 public class ChildVideoServer {
-    private final List<VideoMetadata> videos;
+    private static final long SETTLE_MILLIS = 500; // quiet time before a burst of file events is applied
+
+    private final Map<Path, VideoMetadata> videos = new ConcurrentHashMap<>();
     private final Path storageDirectory;
+    private final String mediaType;
+    private final CatalogIndex index;
+    private volatile CatalogListener listener;
 
     public ChildVideoServer(Path storageDirectory, String mediaType) {
         this.storageDirectory = storageDirectory;
-        this.videos = scanMediasInDirectory(mediaType);
+        this.mediaType = mediaType;
+        this.index = new CatalogIndex(storageDirectory);
+
+        long start = System.nanoTime();
+        Map<Path, VideoMetadata> found = scanMediasInDirectory(storageDirectory);
+        videos.putAll(found);
+        index.retain(found.keySet());
+        index.save();
+        Log.info(storageDirectory + ": " + found.size() + " videos (" + index.getReused() + " unchanged since the last run) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
     }
 
-    private List<VideoMetadata> scanMediasInDirectory(String mediaType) {
-        List<VideoMetadata> foundVideos = new ArrayList<>();
-        try (Stream<Path> paths = Files.walk(storageDirectory)) {
-            foundVideos = paths
-                    .filter(path -> path.toString().toLowerCase().endsWith(mediaType))
-                    .map(VideoMetadata::new)
-                    .collect(Collectors.toList());
+    // One stat per file from the walk itself, known and unchanged files are taken from the index as they are
+    private Map<Path, VideoMetadata> scanMediasInDirectory(Path directory) {
+        Map<Path, VideoMetadata> foundVideos = new HashMap<>();
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && isMedia(path)) {
+                        foundVideos.put(path, index.resolve(path, attributes));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE; // removed while walking
+                }
+            });
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("Could not scan " + directory + ": " + e.getMessage());
         }
         return foundVideos;
     }
 
+    private boolean isMedia(Path path) {
+        return path.toString().toLowerCase().endsWith(mediaType);
+    }
+
     public List<VideoMetadata> getAvailableVideos() {
-        return videos;
+        return videos.values().stream()
+                .sorted(Comparator.comparing(VideoMetadata::getFilePath))
+                .collect(Collectors.toList());
+    }
+
+    public Path getStorageDirectory() {
+        return storageDirectory;
+    }
+
+    // Watches the storage directory tree and publishes every change to the listener, no restart needed for new content
+    public void watch(CatalogListener listener) {
+        this.listener = listener;
+        Thread watcher = new Thread(this::watchStorageDirectory, "catalog-watcher-" + storageDirectory.getFileName());
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watchStorageDirectory() {
+        try (WatchService watchService = storageDirectory.getFileSystem().newWatchService()) {
+            Map<WatchKey, Path> directories = new HashMap<>();
+            registerTree(storageDirectory, watchService, directories);
+
+            // events only mark paths as dirty, the paths are re-examined once the burst is over
+            // (a file being copied in fires a long series of MODIFY events)
+            Set<Path> dirty = new LinkedHashSet<>();
+            boolean rescan = false;
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = dirty.isEmpty() && !rescan ? watchService.take() : watchService.poll(SETTLE_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    applyChanges(dirty, rescan);
+                    dirty.clear();
+                    rescan = false;
+                    continue;
+                }
+                Path directory = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                        rescan = true;
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    if (CatalogIndex.isIndexFile(path)) {
+                        continue; // our own save, not a change of content
+                    }
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        registerTree(path, watchService, directories);
+                        try (Stream<Path> created = Files.walk(path)) {
+                            created.forEach(dirty::add);
+                        }
+                    }
+                    dirty.add(path);
+                }
+                if (!key.reset()) {
+                    directories.remove(key);
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Stopped watching " + storageDirectory, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void registerTree(Path root, WatchService watchService, Map<WatchKey, Path> directories) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                directories.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Brings the catalog in line with the disk for the given paths (or the whole tree) and publishes the delta
+    private void applyChanges(Set<Path> dirty, boolean rescan) {
+        List<VideoMetadata> added = new ArrayList<>();
+        List<VideoMetadata> removed = new ArrayList<>();
+
+        Set<Path> paths = new HashSet<>(dirty);
+        if (rescan) {
+            paths.addAll(videos.keySet());
+            paths.addAll(scanMediasInDirectory(storageDirectory).keySet());
+        }
+        for (Path path : paths) {
+            // a deleted directory takes every video below it along
+            if (!Files.exists(path)) {
+                for (Path known : new ArrayList<>(videos.keySet())) {
+                    if (known.startsWith(path)) {
+                        removed.add(videos.remove(known));
+                        index.remove(known);
+                    }
+                }
+                continue;
+            }
+            if (!isMedia(path) || !Files.isRegularFile(path)) {
+                continue;
+            }
+            VideoMetadata current;
+            try {
+                current = index.resolve(path, Files.readAttributes(path, BasicFileAttributes.class));
+            } catch (IOException e) {
+                continue; // gone again, the delete event follows
+            }
+            VideoMetadata previous = videos.get(path);
+            if (previous != null && previous.getId().equals(current.getId())) {
+                continue;
+            }
+            videos.put(path, current);
+            if (previous != null) {
+                removed.add(previous);
+            }
+            added.add(current);
+        }
+
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        index.save();
+        CatalogListener listener = this.listener;
+        if (listener != null) {
+            Log.info(storageDirectory + ": " + added.size() + " added, " + removed.size() + " removed");
+            listener.catalogChanged(added, removed);
+        }
     }
 
-}
\ No newline at end of file
+}
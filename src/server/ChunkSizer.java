@@ -0,0 +1,91 @@
+package server;
+
+// Chooses the chunk size of one connection from what the link actually does: the send throughput, measured while
+// the socket is the only limit, and the round trip time of PING frames. A chunk covers a quarter of a round trip
+// of sending (at least a few milliseconds), so fast links get few large writes and slow links keep small chunks
+// that a seek or a catalog delta does not have to queue behind for long.
+class ChunkSizer {
+    private static final long SAMPLE_NANOS = 250_000_000L; // throughput measured over windows of this length
+    private static final long MIN_CHUNK_NANOS = 5_000_000L;
+    private static final double SMOOTHING = 0.25; // weight of a new sample in the moving averages
+
+    private final int minSize;
+    private final int maxSize;
+    private int chunkSize;
+
+    private double throughput = 0; // bytes per second, 0 until measured
+    private long rttNanos = 0; // 0 until measured
+    private long windowStart = -1; // -1 when no measure is running
+    private long windowBytes = 0;
+    private long idleSince = -1; // the window is paused while the stream waits on something else than the socket
+
+    ChunkSizer(int initialSize, int minSize, int maxSize) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.chunkSize = clamp(initialSize);
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    double getThroughput() {
+        return throughput;
+    }
+
+    long getRoundTripNanos() {
+        return rttNanos;
+    }
+
+    // Bytes handed to the socket while it was the bottleneck
+    void sent(int bytes, long now) {
+        if (windowStart < 0) {
+            windowStart = now;
+            windowBytes = 0;
+        } else if (idleSince >= 0) {
+            windowStart += now - idleSince;
+        }
+        idleSince = -1;
+        windowBytes += bytes;
+        long elapsed = now - windowStart;
+        if (elapsed >= SAMPLE_NANOS) {
+            double sample = windowBytes * 1e9 / elapsed;
+            throughput = throughput == 0 ? sample : throughput + SMOOTHING * (sample - throughput);
+            windowStart = now;
+            windowBytes = 0;
+            resize();
+        }
+    }
+
+    // The stream stopped for another reason than the socket (credit, cache, end), the time spent idle is not measured
+    void idle(long now) {
+        if (idleSince < 0) {
+            idleSince = now;
+        }
+    }
+
+    void roundTrip(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        rttNanos = rttNanos == 0 ? nanos : (long) (rttNanos + SMOOTHING * (nanos - rttNanos));
+        resize();
+    }
+
+    private void resize() {
+        if (throughput == 0) {
+            return;
+        }
+        long chunkNanos = Math.max(MIN_CHUNK_NANOS, rttNanos / 4);
+        chunkSize = clamp((long) (throughput * chunkNanos / 1e9));
+    }
+
+    private int clamp(long size) {
+        return (int) Math.max(minSize, Math.min(maxSize, size));
+    }
+
+    @Override
+    public String toString() {
+        return "chunk=" + chunkSize + " rtt=" + String.format("%.1f", rttNanos / 1e6) + "ms throughput=" + String.format("%.1f", throughput / 1e6) + "MB/s";
+    }
+}
@@ -0,0 +1,952 @@
+package server;
+
+import inc.Log;
+import model.VideoMetadata;
+import protocol.FrameReader;
+import protocol.FrameWriter;
+import protocol.Protocol;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// One connected client. Everything here runs on the session's event loop thread: frames are decoded as they
+// arrive, and the video is pushed whenever the socket can take more, so an idle or paused viewer costs no thread.
+class ClientSession {
+    private enum State { HANDSHAKE, IDLE, STREAMING, CLOSED }
+
+    private static final int MAX_CHUNKS_PER_TURN = 64; // then yield to the other sessions of the loop
+    private static final long PING_INTERVAL_NANOS = 1_000_000_000L;
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final Log.Sampler CHUNK_LOG = new Log.Sampler(Log.Level.DEBUG, 1000);
+
+    private final VideoStreamingServer server;
+    private final StreamingEventLoop loop;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_CLIENT_PAYLOAD = 8 * 1024; // control frames of a client; a child node's catalog updates may be larger
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ArrayDeque<Outbound> outbound = new ArrayDeque<>(); // bytes waiting for the socket, in order
+    private final FrameWriter out = new FrameWriter(new SessionOutput());
+    private final ClientStreamingState streamingState = new ClientStreamingState();
+    private final ChunkSizer chunkSizer;
+    private final StreamMetrics metrics;
+    private final EgressScheduler.Flow egressFlow; // this session's share of the server's uplink
+    private final Histogram chunkLatencyMicros = new Histogram(); // this session's share of the server-wide one
+    private long streamRequestedAt; // STREAM received, for the time to first byte
+    private boolean firstByteSent = false;
+    private double bufferAheadSeconds = 0; // media sent ahead of the playhead at the last PLAYBACK report
+    private long lastPing = 0;
+    private boolean pingOutstanding = false;
+    // filters of the client's last catalog query, deltas are only sent once it has asked for the catalog
+    private String catalogMediaType;
+    private String catalogDirectory;
+    private RemoteNode node; // the peer is a child node registered on this connection
+    private State state = State.HANDSHAKE;
+
+    // current video
+    private VideoMetadata video;
+    private FileChannel fileChannel;
+    private long fileSize;
+    private Mp4Index mediaIndex; // sample tables of the video, null until parsed or if it has none
+    private SegmentIndex segments; // how the video is cut into cached segments, null until known
+    private boolean loadingIndex = false; // waiting for the keyframe segments of the video to read it through the cache
+    private long position; // next byte to send
+    private long startOffset; // where the stream started or was last repositioned
+    private long endOffset; // where the stream ends, the file size unless a range was asked for
+    private boolean ranged = false; // a RANGE: the client asked for exactly these bytes, they are not paced by credit
+    private double resumeTime = -1; // SWITCH: once the header is out, the stream continues from this media time
+    private boolean stalled = false; // out of credit until the client's next PLAYBACK report
+    private boolean waitingForEgress = false; // until the egress scheduler gives this session its turn
+    private boolean admitted = false; // holds one of the server's stream places
+    private String viewedVideoId; // last video counted in the popularity for this session
+    private AdmissionControl.Ticket pendingAdmission; // STREAM waiting for a place
+    private byte[] buffer; // heap path only
+    private ByteBuffer segment; // cached segment being sent
+    private int segmentIndex = -1;
+    private boolean loadingSegment = false; // waiting for the segment cache to read from disk
+    private int uncachedSegment = -1; // segment the cache could not load, sent from the file instead
+    private int streamGeneration = 0; // tells apart the completions of a previous stream
+
+    ClientSession(VideoStreamingServer server, StreamingEventLoop loop, SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.chunkSizer = new ChunkSizer(server.getChunkSize(), server.getMinChunkSize(), server.getMaxChunkSize());
+        this.metrics = server.getMetrics();
+        this.egressFlow = server.getEgressScheduler().open(this::resumeEgress);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    ClientStreamingState getStreamingState() {
+        return streamingState;
+    }
+
+    // The server-wide numbers followed by this session's, for the STATS command
+    private Map<String, Double> statsSnapshot() {
+        Map<String, Double> stats = metrics.snapshot();
+        stats.put("session.bytes_sent", (double) streamingState.getBytesWritten());
+        stats.put("session.credit_stalls", (double) streamingState.getCreditStalls());
+        stats.put("session.chunk_size", (double) chunkSizer.getChunkSize());
+        stats.put("session.throughput_bytes_per_second", chunkSizer.getThroughput());
+        stats.put("session.rtt_us", (double) chunkSizer.getRoundTripNanos() / 1000);
+        stats.put("session.chunk_latency_p50_us", (double) chunkLatencyMicros.percentile(0.5));
+        stats.put("session.chunk_latency_p99_us", (double) chunkLatencyMicros.percentile(0.99));
+        stats.put("session.buffer_ahead_s", bufferAheadSeconds);
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        VideoMetadata current = video;
+        return channel.socket().getRemoteSocketAddress() + " " + (current != null ? current.getTitle() : "idle")
+                + " sent=" + streamingState.getBytesWritten() + " stalls=" + streamingState.getCreditStalls()
+                + " ahead=" + String.format("%.1f", bufferAheadSeconds) + "s latency[" + chunkLatencyMicros + "]us " + chunkSizer;
+    }
+
+    void open() {
+        try {
+            key = loop.register(channel, this);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void onReady(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (state != State.CLOSED && key.isWritable()) {
+                flushOutbound();
+                pump();
+            }
+            updateInterest();
+        } catch (IOException | RuntimeException e) {
+            Log.debug("Session aborted: " + e);
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        FrameReader frame;
+        while (state != State.CLOSED && (frame = FrameReader.poll(readBuffer)) != null) {
+            handle(frame);
+        }
+        if (state == State.CLOSED) {
+            return;
+        }
+        // make room for a frame larger than the buffer, and give the room back once it is handled
+        if (readBuffer.remaining() >= Protocol.HEADER_SIZE && readBuffer.position() == 0 && readBuffer.limit() == readBuffer.capacity()) {
+            int length = FrameReader.pendingLength(readBuffer);
+            if (node == null && length > MAX_CLIENT_PAYLOAD) {
+                throw new StreamCorruptedException("Frame of " + length + " bytes from a client");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Protocol.HEADER_SIZE + length);
+            larger.put(readBuffer);
+            readBuffer = larger;
+        } else if (readBuffer.capacity() > READ_BUFFER_SIZE && readBuffer.remaining() <= READ_BUFFER_SIZE / 2) {
+            ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            smaller.put(readBuffer);
+            readBuffer = smaller;
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    private void handle(FrameReader frame) throws IOException {
+        if (state == State.HANDSHAKE) {
+            // Both sides must speak the same protocol version before anything else is exchanged
+            try {
+                frame.expectHello();
+            } catch (StreamCorruptedException e) {
+                out.error(e.getMessage());
+                throw e;
+            }
+            out.hello();
+            state = State.IDLE;
+            return;
+        }
+
+        byte command = frame.next();
+        Log.debug("Received " + Protocol.name(command));
+        switch (command) {
+            case Protocol.EXIT -> {
+                // EXIT with keepConnection=true ends the current video, otherwise the client is leaving
+                boolean keepConnection = frame.readBoolean();
+                stopStream();
+                if (!keepConnection) {
+                    close();
+                }
+            }
+            case Protocol.STREAM -> startStream(frame.readString(), frame.readLong(), -1);
+            case Protocol.RANGE -> startStream(frame.readString(), frame.readLong(), frame.readLong());
+            case Protocol.SEGMENT -> streamSegment(frame.readString(), frame.readInt());
+            case Protocol.SWITCH -> startStream(frame.readString(), 0, -1, frame.readDouble());
+            case Protocol.MANIFEST_QUERY -> sendManifest(frame.readString());
+            case Protocol.SEEK -> seek(frame.readLong());
+            case Protocol.SEEK_TIME -> {
+                double time = frame.readDouble();
+                double totalTime = frame.readDouble();
+                if (state == State.STREAMING) {
+                    seek(duration() > 0 ? offsetAt(time) : (long) (fileSize * (time / totalTime)));
+                }
+            }
+            case Protocol.CATALOG_QUERY -> sendCatalogPage(frame.readInt(), frame.readInt(), frame.readByte(), frame.readString(), frame.readString());
+            case Protocol.NODE_REGISTER -> node = server.getNodeRegistry().register(frame.readString(), frame.readInt(), this);
+            case Protocol.CATALOG_DELTA -> {
+                if (node == null) {
+                    frame.skipPayload();
+                } else {
+                    server.getNodeRegistry().update(node, frame.readVideos(), frame.readIds());
+                }
+            }
+            case Protocol.NODE_LOAD -> {
+                if (node == null) {
+                    frame.skipPayload();
+                } else {
+                    node.setLoad(frame.readInt(), frame.readLong());
+                }
+            }
+            case Protocol.PONG -> {
+                long roundTrip = System.nanoTime() - frame.readLong();
+                chunkSizer.roundTrip(roundTrip);
+                metrics.roundTrip(roundTrip);
+                pingOutstanding = false;
+            }
+            case Protocol.STATS -> out.statsReply(statsSnapshot());
+            case Protocol.PLAYBACK -> {
+                // Update client's current playback time, which grants the credit to send further: max_buffer_seconds
+                // of media ahead of it, at the offset the video's index gives for that time
+                double playbackTime = frame.readDouble();
+                streamingState.setCurrentPlaybackTime(playbackTime);
+                streamingState.setTotalTime(frame.readDouble());
+                if (duration() > 0) {
+                    streamingState.grantCredit(offsetAt(playbackTime + server.getMaxBufferSeconds()), creditFloor());
+                }
+                if (state == State.STREAMING && duration() > 0 && !ranged) {
+                    bufferAheadSeconds = Math.max(0, timeAt(position) - playbackTime);
+                    metrics.bufferAhead(bufferAheadSeconds);
+                }
+                if (state == State.STREAMING && streamingState.hasCredit(position)) {
+                    stalled = false;
+                    pump();
+                }
+            }
+            default -> frame.skipPayload();
+        }
+    }
+
+    // Pages are slices of an immutable snapshot, deltas published after it was taken reach the client after them
+    private void sendCatalogPage(int offset, int limit, byte sort, String mediaType, String directory) throws IOException {
+        List<VideoMetadata> view = server.getCentralServer().query(sort, mediaType, directory);
+        int from = Math.max(0, Math.min(offset, view.size()));
+        int to = from + Math.max(0, Math.min(Math.min(limit, MAX_PAGE_SIZE), view.size() - from));
+        out.catalogPage(from, view.size(), view.subList(from, to));
+        catalogMediaType = mediaType;
+        catalogDirectory = directory;
+    }
+
+    // Called from the catalog watchers, the delta is written on the loop like every other frame
+    void sendCatalogDelta(List<VideoMetadata> added, List<VideoMetadata> removed) {
+        loop.execute(() -> {
+            if (state == State.HANDSHAKE || state == State.CLOSED || catalogMediaType == null) {
+                return; // the first page the client asks for will include it
+            }
+            List<VideoMetadata> addedMatching = added.stream().filter(this::inCatalogQuery).toList();
+            List<VideoMetadata> removedMatching = removed.stream().filter(this::inCatalogQuery).toList();
+            if (addedMatching.isEmpty() && removedMatching.isEmpty()) {
+                return;
+            }
+            try {
+                out.catalogDelta(addedMatching, removedMatching);
+                flushOutbound();
+                updateInterest();
+            } catch (IOException e) {
+                close();
+            }
+        });
+    }
+
+    // Commands to the child node on the other end, from the replication thread
+    void sendReplicate(VideoMetadata video, String sourceHost, int sourcePort) {
+        sendLater(() -> out.replicate(video, sourceHost, sourcePort));
+    }
+
+    void sendDropReplica(String videoId) {
+        sendLater(() -> out.dropReplica(videoId));
+    }
+
+    private void sendLater(FrameAction action) {
+        loop.execute(() -> {
+            if (state == State.HANDSHAKE || state == State.CLOSED) {
+                return;
+            }
+            try {
+                action.write();
+                flushOutbound();
+                updateInterest();
+            } catch (IOException e) {
+                close();
+            }
+        });
+    }
+
+    private interface FrameAction {
+        void write() throws IOException;
+    }
+
+    private boolean inCatalogQuery(VideoMetadata video) {
+        return server.getCentralServer().matches(video, catalogMediaType, catalogDirectory);
+    }
+
+    // Streams the video from offset, to its end or only `length` bytes (a range, length >= 0)
+    private void startStream(String videoId, long offset, long length) throws IOException {
+        startStream(videoId, offset, length, -1);
+    }
+
+    // With a resume time (SWITCH to another rendition of the title being watched), only the header of the file is
+    // sent from offset, then the stream continues from that media time
+    private void startStream(String videoId, long offset, long length, double resumeAt) throws IOException {
+        boolean established = admitted; // a viewer switching videos keeps its place
+        admitted = false;
+        stopStream();
+        resumeTime = resumeAt;
+        try {
+            startStream(videoId, offset, length, established);
+        } finally {
+            if (established && !admitted) {
+                server.getAdmissionControl().release();
+            }
+        }
+    }
+
+    private void startStream(String videoId, long offset, long length, boolean established) throws IOException {
+        streamRequestedAt = System.nanoTime();
+        firstByteSent = false;
+        bufferAheadSeconds = 0;
+
+        video = server.getCentralServer().getVideo(videoId);
+        if (video == null) {
+            out.videoError("Unknown video " + videoId);
+            return;
+        }
+        // Served by the least loaded server holding the file: here, or a child node the client is sent to
+        boolean local = video.getFilePath() != null;
+        RemoteNode target = server.getNodeRegistry().choose(videoId, local ? server.getLoad() : -1);
+        if (target != null || !local) {
+            video = null;
+            if (target != null) {
+                if (length < 0) {
+                    recordView(videoId); // admitted, or not, by the node
+                }
+                out.redirect(target.getHost(), target.getPort());
+            } else {
+                out.videoError("No server holds " + videoId + " anymore");
+            }
+            return;
+        }
+
+        // past the server's limits a new viewer waits for a place, then is told to come back later
+        if (length < 0 && !established) {
+            String limit = server.getAdmissionControl().admit();
+            if (limit != null) {
+                VideoMetadata requested = video;
+                video = null;
+                waitForAdmission(requested, offset, limit);
+                return;
+            }
+        }
+        admitted = length < 0;
+        if (admitted) {
+            recordView(videoId);
+        }
+        openStream(offset, length);
+    }
+
+    // A view counts once it is admitted, once per session and video: ranges, gap refills and retries after BUSY
+    // complete the same view
+    private void recordView(String videoId) {
+        if (!videoId.equals(viewedVideoId)) {
+            viewedVideoId = videoId;
+            server.getPopularity().record(videoId);
+        }
+    }
+
+    // A SEGMENT is the RANGE of its bytes, once the segments of the video are known
+    private void streamSegment(String videoId, int number) throws IOException {
+        VideoMetadata requested = server.getCentralServer().getVideo(videoId);
+        if (requested == null || requested.getFilePath() == null) {
+            startStream(videoId, 0, 0); // not held here: the same error or redirect as a range
+            return;
+        }
+        SegmentIndex cached = server.getIndexCache().getIfPresent(requested);
+        if (cached != null) {
+            streamSegment(videoId, number, cached);
+            return;
+        }
+        stopStream();
+        int generation = streamGeneration;
+        server.getIndexCache().load(requested).whenComplete((index, error) -> loop.execute(() -> {
+            if (generation != streamGeneration || state == State.CLOSED) {
+                return; // the client asked for something else meanwhile
+            }
+            try {
+                streamSegment(videoId, number, index);
+                flushOutbound();
+                updateInterest();
+            } catch (IOException e) {
+                close();
+            }
+        }));
+    }
+
+    private void streamSegment(String videoId, int number, SegmentIndex index) throws IOException {
+        if (index == null || number < 0 || number >= index.count()) {
+            out.videoError("No segment " + number + " of " + videoId);
+            return;
+        }
+        startStream(videoId, index.start(number), index.end(number) - index.start(number));
+    }
+
+    // The segments of a video held here. One held elsewhere gets an empty manifest: the client asks for it by
+    // range, and is redirected to a node holding it.
+    private void sendManifest(String videoId) throws IOException {
+        VideoMetadata requested = server.getCentralServer().getVideo(videoId);
+        if (requested == null || requested.getFilePath() == null) {
+            out.manifest(videoId, 0, 0, 0, new long[0], new double[0]);
+            return;
+        }
+        server.getIndexCache().load(requested).whenComplete((index, error) -> sendLater(() -> {
+            if (index == null) {
+                out.manifest(videoId, 0, 0, 0, new long[0], new double[0]);
+            } else {
+                out.manifest(videoId, requested.getLastModified(), index.getFileSize(), index.getDuration(), index.starts(), index.times());
+            }
+        }));
+    }
+
+    private void openStream(long offset, long length) throws IOException {
+        try {
+            fileChannel = FileChannel.open(Paths.get(video.getFilePath()), StandardOpenOption.READ);
+            fileSize = fileChannel.size();
+        } catch (IOException e) {
+            Log.warn("Could not open " + video.getFilePath() + ": " + e.getMessage());
+            out.videoError("Could not stream " + video.getTitle());
+            stopStream();
+            return;
+        }
+
+        IndexCache indexes = server.getIndexCache();
+        segments = indexes.isKeyframeSegments() ? null : SegmentIndex.fixed(fileSize, indexes.getSegmentSize(), null);
+        loadIndex();
+
+        // Send video metadata first, a non-zero offset resumes a partial download
+        position = Math.max(0, Math.min(offset, fileSize));
+        startOffset = position;
+        ranged = length >= 0;
+        endOffset = ranged ? Math.min(fileSize, position + length) : fileSize;
+        out.videoStart(server.getMediaType(), video.getId(), fileSize, position);
+        streamingState.reset();
+        streamingState.setCreditLimit(creditFloor());
+        state = State.STREAMING;
+        metrics.streamStarted();
+        pump();
+    }
+
+    // The video's sample tables and segments, built off the loop the first time. Until they are there the stream is
+    // paced linearly, and with keyframe segments it waits for them before reading through the segment cache.
+    private void loadIndex() {
+        SegmentIndex cached = server.getIndexCache().getIfPresent(video);
+        if (cached != null) {
+            indexed(cached);
+            return;
+        }
+        loadingIndex = (segments == null && server.getSegmentCache().isEnabled()) || resumeTime >= 0;
+        int generation = streamGeneration;
+        server.getIndexCache().load(video).whenComplete((index, error) -> loop.execute(() -> {
+            if (generation != streamGeneration) {
+                return;
+            }
+            indexed(index);
+            if (loadingIndex) {
+                loadingIndex = false;
+                try {
+                    pump();
+                    updateInterest();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }));
+    }
+
+    // index is null if it could not be built
+    private void indexed(SegmentIndex index) {
+        mediaIndex = index != null ? index.getMedia() : null;
+        if (segments == null) {
+            // the file changed since it was indexed, or it could not be: fixed slices until the catalog catches up
+            segments = index != null && index.getFileSize() == fileSize ? index : SegmentIndex.fixed(fileSize, server.getIndexCache().getSegmentSize(), null);
+        }
+    }
+
+    // Duration of the current video: from its sample tables, the catalog, or else the client's player
+    private double duration() {
+        if (mediaIndex != null) {
+            return mediaIndex.getDuration();
+        }
+        return video != null && video.getDuration() > 0 ? video.getDuration() : streamingState.getTotalTime();
+    }
+
+    // Media time playable with the bytes before offset, duration() > 0
+    private double timeAt(long offset) {
+        return mediaIndex != null ? mediaIndex.timeAt(offset) : offset * duration() / fileSize;
+    }
+
+    // Offset the bytes are needed up to for playing until time, duration() > 0
+    private long offsetAt(double time) {
+        return mediaIndex != null ? mediaIndex.offsetAt(time) : (long) (time * (fileSize / duration()));
+    }
+
+    private void waitForAdmission(VideoMetadata requested, long offset, String limit) throws IOException {
+        AdmissionControl admission = server.getAdmissionControl();
+        pendingAdmission = admission.enqueue(ticket -> loop.execute(() -> {
+            if (pendingAdmission != ticket || state == State.CLOSED) {
+                admission.release(); // the client moved on meanwhile
+                return;
+            }
+            pendingAdmission = null;
+            admitted = true;
+            video = requested;
+            recordView(requested.getId());
+            try {
+                openStream(offset, -1);
+                updateInterest();
+            } catch (IOException e) {
+                close();
+            }
+        }));
+        if (pendingAdmission == null) {
+            refuse(limit);
+            return;
+        }
+        AdmissionControl.Ticket ticket = pendingAdmission;
+        loop.schedule(() -> {
+            if (pendingAdmission != ticket || !admission.withdraw(ticket)) {
+                return; // admitted or abandoned meanwhile
+            }
+            pendingAdmission = null;
+            try {
+                refuse(limit);
+                flushOutbound();
+                updateInterest();
+            } catch (IOException e) {
+                close();
+            }
+        }, admission.getQueueMillis());
+    }
+
+    private void refuse(String limit) throws IOException {
+        int retryAfter = server.getAdmissionControl().refuse();
+        Log.info("Stream refused to " + channel.socket().getRemoteSocketAddress() + ": " + limit + ", retry in " + retryAfter + " ms");
+        out.busy(retryAfter, limit);
+    }
+
+    // Sends chunks until the socket is full, the client has enough buffered, or this session had its share of the turn
+    private void pump() throws IOException {
+        int budget = MAX_CHUNKS_PER_TURN;
+        while (state == State.STREAMING && !stalled && !loadingIndex && !loadingSegment && !waitingForEgress && outbound.isEmpty() && budget-- > 0) {
+            if (position >= endOffset) {
+                // Signal end of video stream
+                Log.info("Stream ended: " + this);
+                out.signal(Protocol.VIDEO_END);
+                stopStream();
+                break;
+            }
+
+            // Wait if buffer is too large (large distance between playback and chunks): nothing is sent
+            // until the client's playback advances and its next report extends the credit
+            if (!streamingState.hasCredit(position)) {
+                Log.debug("Waiting for credit at " + streamingState.getCurrentPlaybackTime() + "/" + streamingState.getTotalTime() + " s");
+                streamingState.incrementCreditStalls();
+                metrics.creditStall();
+                stalled = true;
+                chunkSizer.idle(System.nanoTime());
+                break;
+            }
+            if (resumeTime >= 0 && resume()) {
+                continue; // from the new position on
+            }
+            long now = System.nanoTime();
+            if (!pingOutstanding && now - lastPing >= PING_INTERVAL_NANOS) {
+                out.ping(now);
+                pingOutstanding = true;
+                lastPing = now;
+            }
+
+            int bytesRead = (int) Math.min(Math.min(chunkSizer.getChunkSize(), endOffset - position), streamingState.getCreditLimit() - position);
+            if (resumeTime >= 0 && mediaIndex != null) {
+                bytesRead = (int) Math.min(bytesRead, mediaIndex.getMediaStart() - position); // the header alone, then the jump
+            }
+            SegmentCache cache = server.getSegmentCache();
+            int number = cache.isEnabled() && segments != null ? segments.segmentAt(position) : -1;
+            boolean cached = number >= 0 && number != uncachedSegment;
+            int offset = 0;
+            if (cached) {
+                // shared hot data: the chunk is a view of the cached off-heap segment
+                if (!selectSegment(cache, number)) {
+                    chunkSizer.idle(System.nanoTime());
+                    break;
+                }
+                offset = (int) (position - segments.start(number));
+                if (offset < segment.limit()) {
+                    bytesRead = Math.min(bytesRead, segment.limit() - offset);
+                } else {
+                    // the file was shorter when the segment was read: what it lacks goes out from the file
+                    uncachedSegment = number;
+                    cached = false;
+                }
+            }
+
+            // the uplink is shared with the other sessions: wait for the scheduler to give this one its turn
+            if (server.getEgressScheduler().acquire(egressFlow, bytesRead, ranged ? Double.POSITIVE_INFINITY : bufferAheadSeconds) == 0) {
+                waitingForEgress = true;
+                chunkSizer.idle(now);
+                break;
+            }
+
+            // sending chunks if not waiting
+            CHUNK_LOG.log(() -> "Sending " + video.getTitle() + " at " + position);
+            if (cached) {
+                out.chunkHeader(bytesRead);
+                out.flush();
+                outbound.add(new BufferRegion(segment.duplicate().position(offset).limit(offset + bytesRead)));
+            } else if (server.isZeroCopy()) {
+                // the payload goes straight from the page cache to the socket (sendfile on Linux)
+                out.chunkHeader(bytesRead);
+                out.flush();
+                outbound.add(new FileRegion(fileChannel, position, bytesRead));
+            } else {
+                if (buffer == null || buffer.length < bytesRead) {
+                    buffer = new byte[bytesRead];
+                }
+                readChunk(position, bytesRead);
+                out.chunk(buffer, 0, bytesRead);
+            }
+            outbound.add(new ChunkSent(now, !firstByteSent));
+            firstByteSent = true;
+            position += bytesRead;
+
+            // Update bytes written
+            streamingState.incrementBytesWritten(bytesRead);
+            server.addEgress(bytesRead);
+            chunkSizer.sent(bytesRead, now);
+
+            flushOutbound();
+        }
+        flushOutbound();
+    }
+
+    // Makes the cached segment `index` current, false while it is being loaded (pump resumes once it is there)
+    private boolean selectSegment(SegmentCache cache, int index) {
+        if (index == segmentIndex && segment != null) {
+            return true;
+        }
+        segment = cache.getIfPresent(video.getId(), segments.start(index), segments.length(index));
+        segmentIndex = index;
+        if (segment != null) {
+            return true;
+        }
+
+        loadingSegment = true;
+        int generation = streamGeneration;
+        cache.load(video, segments.start(index), segments.length(index)).whenComplete((loaded, error) -> loop.execute(() -> {
+            if (generation != streamGeneration || state != State.STREAMING) {
+                return;
+            }
+            loadingSegment = false;
+            if (error != null) {
+                // disk error or loader pool full: this segment goes out straight from the file
+                uncachedSegment = index;
+            } else if (segmentIndex == index) {
+                segment = loaded;
+            }
+            try {
+                pump();
+                updateInterest();
+            } catch (IOException e) {
+                close();
+            }
+        }));
+        return false;
+    }
+
+    // After a SWITCH, jumps to the offset of the viewer's media time once the file's header is out; the index is
+    // there by now (the stream waited for it), a file without one jumps at once at its average bitrate. The VIDEO_SEEK
+    // is sent even without a jump: it tells the client where the data of that time starts.
+    private boolean resume() throws IOException {
+        if (mediaIndex != null && position < mediaIndex.getMediaStart()) {
+            return false;
+        }
+        double time = resumeTime;
+        resumeTime = -1;
+        long target = duration() > 0 ? Math.min(offsetAt(time), endOffset) : position;
+        if (segments != null && segments.isKeyframeAligned() && target < endOffset) {
+            target = Math.max(position, segments.start(segments.segmentAt(target))); // from the keyframe before
+        }
+        if (target <= position) {
+            out.videoSeek(position);
+            return false;
+        }
+        position = target;
+        startOffset = position;
+        out.videoSeek(position);
+        streamingState.setCreditLimit(Math.max(streamingState.getCreditLimit(), creditFloor()));
+        return true;
+    }
+
+    // Called by the egress scheduler when this session's turn comes
+    private void resumeEgress() {
+        loop.execute(() -> {
+            if (!waitingForEgress) {
+                return;
+            }
+            waitingForEgress = false;
+            try {
+                pump();
+                updateInterest();
+            } catch (IOException e) {
+                close();
+            }
+        });
+    }
+
+    // Moves the current stream to another offset without restarting it, the client is told where the next chunks belong
+    private void seek(long offset) throws IOException {
+        if (state != State.STREAMING) {
+            return;
+        }
+        position = Math.max(0, Math.min(offset, endOffset));
+        startOffset = position;
+        out.videoSeek(position);
+        bufferAheadSeconds = 0; // the player starts over from an empty buffer
+        // until the player reports from its new position, the target gets the same head start as a new stream
+        streamingState.setCreditLimit(Math.max(streamingState.getCreditLimit(), creditFloor()));
+        stalled = false;
+        pump();
+    }
+
+    private long creditFloor() {
+        return ranged ? endOffset : Math.min(endOffset, startOffset + server.getInitialCreditBytes());
+    }
+
+    private void stopStream() {
+        if (pendingAdmission != null) {
+            server.getAdmissionControl().withdraw(pendingAdmission); // if it was admitted meanwhile, the admission gives it back
+            pendingAdmission = null;
+        }
+        if (admitted) {
+            admitted = false;
+            server.getAdmissionControl().release();
+        }
+        if (fileChannel != null) {
+            // chunks already queued still reference the file, close it once they are out
+            outbound.add(new FileRelease(fileChannel));
+            fileChannel = null;
+        }
+        video = null;
+        mediaIndex = null;
+        resumeTime = -1;
+        segments = null;
+        loadingIndex = false;
+        ranged = false;
+        stalled = false;
+        waitingForEgress = false;
+        server.getEgressScheduler().cancel(egressFlow);
+        segment = null;
+        segmentIndex = -1;
+        loadingSegment = false;
+        uncachedSegment = -1;
+        streamGeneration++;
+        chunkSizer.idle(System.nanoTime());
+        streamingState.reset();
+        if (state == State.STREAMING) {
+            state = State.IDLE;
+        }
+    }
+
+    private void readChunk(long position, int length) throws IOException {
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+        while (chunk.hasRemaining()) {
+            if (fileChannel.read(chunk, position + chunk.position()) < 0) {
+                throw new EOFException("File truncated while streaming");
+            }
+        }
+    }
+
+    private void flushOutbound() throws IOException {
+        while (!outbound.isEmpty()) {
+            if (!outbound.peek().writeTo(channel)) {
+                return; // socket buffer full, wait for OP_WRITE
+            }
+            outbound.poll();
+        }
+    }
+
+    private void updateInterest() {
+        if (state == State.CLOSED || key == null || !key.isValid()) {
+            return;
+        }
+        boolean canSend = state == State.STREAMING && !stalled && !loadingIndex && !loadingSegment && !waitingForEgress;
+        key.interestOps(SelectionKey.OP_READ | (!outbound.isEmpty() || canSend ? SelectionKey.OP_WRITE : 0));
+    }
+
+    void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        stopStream();
+        state = State.CLOSED;
+        if (node != null) {
+            server.getNodeRegistry().unregister(node);
+        }
+        // release the files still referenced by pending chunks
+        for (Outbound pending : outbound) {
+            if (pending instanceof FileRelease) {
+                ((FileRelease) pending).release();
+            }
+        }
+        outbound.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.debug("Could not close the connection: " + e.getMessage());
+        }
+        server.sessionClosed(this);
+    }
+
+    // Something queued for the socket, writeTo returns true once it is completely sent
+    private interface Outbound {
+        boolean writeTo(SocketChannel socket) throws IOException;
+    }
+
+    private static final class BufferRegion implements Outbound {
+        private final ByteBuffer bytes;
+
+        private BufferRegion(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel socket) throws IOException {
+            socket.write(bytes);
+            return !bytes.hasRemaining();
+        }
+    }
+
+    private static final class FileRegion implements Outbound {
+        private final FileChannel file;
+        private long position; // next byte to send
+        private long remaining;
+
+        private FileRegion(FileChannel file, long position, long length) {
+            this.file = file;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel socket) throws IOException {
+            while (remaining > 0) {
+                long transferred = file.transferTo(position, remaining, socket);
+                if (transferred <= 0) {
+                    if (position >= file.size()) {
+                        throw new EOFException("File truncated while streaming");
+                    }
+                    return false;
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+            return true;
+        }
+    }
+
+    // Closes a video file once the chunks queued before it have left
+    private static final class FileRelease implements Outbound {
+        private final FileChannel file;
+
+        private FileRelease(FileChannel file) {
+            this.file = file;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel socket) {
+            release();
+            return true;
+        }
+
+        private void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.debug("Could not close a video file: " + e.getMessage());
+            }
+        }
+    }
+
+    // Marks the end of a chunk in the queue: reached once the chunk has completely left, which times it
+    private final class ChunkSent implements Outbound {
+        private final long queuedAt;
+        private final boolean first;
+
+        private ChunkSent(long queuedAt, boolean first) {
+            this.queuedAt = queuedAt;
+            this.first = first;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel socket) {
+            long now = System.nanoTime();
+            chunkLatencyMicros.record((now - queuedAt) / 1000);
+            metrics.chunkSent(now - queuedAt);
+            if (first) {
+                metrics.firstByte(now - streamRequestedAt);
+            }
+            return true;
+        }
+    }
+
+    // Sink of the session's FrameWriter: every flushed frame is queued for the socket
+    private final class SessionOutput extends OutputStream {
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            outbound.add(new BufferRegion(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length))));
+        }
+    }
+}
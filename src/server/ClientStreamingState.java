@@ -0,0 +1,69 @@
+package server;
+
+// Tracks client-specific streaming state
+class ClientStreamingState {
+    private volatile long bytesWritten = 0; // amount of data written to the file
+    private volatile double currentPlaybackTime = 0;
+    private volatile double totalTime = 0;
+    private volatile long creditLimit = 0; // offset up to which the client allows us to send
+    private volatile int creditStalls = 0; // times the stream stopped for lack of credit
+
+    public synchronized void incrementBytesWritten(int bytes) {
+        bytesWritten += bytes;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized void setCurrentPlaybackTime(double time) {
+        this.currentPlaybackTime = time;
+    }
+
+    public synchronized double getCurrentPlaybackTime() {
+        return currentPlaybackTime;
+    }
+
+    public synchronized double getTotalTime() {
+        return totalTime;
+    }
+
+    public synchronized void setTotalTime(double totalTime) {
+        this.totalTime = totalTime;
+    }
+
+    public synchronized long getCreditLimit() {
+        return creditLimit;
+    }
+
+    public synchronized void setCreditLimit(long creditLimit) {
+        this.creditLimit = creditLimit;
+    }
+
+    // Each playback report is a time credit: the stream may run max_buffer_seconds ahead of the reported position,
+    // limit is the offset of that time. The floor is the initial credit after the last start or seek, before the
+    // client's player has caught up with it.
+    public synchronized void grantCredit(long limit, long creditFloor) {
+        creditLimit = Math.max(creditFloor, limit);
+    }
+
+    public synchronized boolean hasCredit(long position) {
+        return position < creditLimit;
+    }
+
+    public synchronized int getCreditStalls() {
+        return creditStalls;
+    }
+
+    public synchronized void incrementCreditStalls() {
+        creditStalls++;
+    }
+
+    public synchronized void reset() {
+        bytesWritten = 0;
+        currentPlaybackTime = 0;
+        totalTime = 0;
+        creditLimit = 0;
+        creditStalls = 0;
+    }
+}
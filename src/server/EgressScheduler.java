@@ -0,0 +1,236 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Shares the server's uplink between the streaming sessions of every event loop. A session asks for each chunk
+// before queueing it: with no limit configured the answer is always yes, otherwise the bytes come out of a
+// server-wide token bucket (and the session's own, if sessions are capped too). Once the bucket runs dry the
+// sessions queue up and are resumed as it refills, viewers close to running dry first, then the one that got the
+// least so far (start-time fair queuing on bytes / weight), so a few fast links cannot take the whole uplink.
+class EgressScheduler {
+    private static final long TICK_MILLIS = 5;
+    private static final double BURST_SECONDS = 0.05; // what an unused bucket can save up
+    private static final long MIN_BURST_BYTES = 256 * 1024; // at least one chunk of the largest size
+
+    private final long rateBytes; // server-wide bytes per second, 0 for no limit
+    private final long sessionRateBytes; // per session, 0 for no limit
+    private final double lowBufferSeconds; // below this much media ahead of its playhead a viewer is served first
+    private final double lowBufferWeight; // and gets this many times the share of the others
+    private final boolean limited;
+    private final PriorityQueue<Flow> waiting = new PriorityQueue<>(); // sessions waiting for tokens
+    private final List<Flow> throttled = new ArrayList<>(); // sessions over their own rate
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private double virtualClock = 0; // start tag of the last flow served, where a flow coming back from idle starts
+    private long sequence = 0;
+
+    private final LongAdder deferrals = new LongAdder();
+    private final LongAdder urgentGrants = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final Histogram waitMicros = new Histogram(); // time spent queued before being resumed
+
+    EgressScheduler(long rateBytes, long sessionRateBytes, double lowBufferSeconds, double lowBufferWeight) {
+        this.rateBytes = Math.max(0, rateBytes);
+        this.sessionRateBytes = Math.max(0, sessionRateBytes);
+        this.lowBufferSeconds = lowBufferSeconds;
+        this.lowBufferWeight = Math.max(1, lowBufferWeight);
+        this.limited = this.rateBytes > 0 || this.sessionRateBytes > 0;
+        this.tokens = burst(this.rateBytes);
+    }
+
+    void start() {
+        if (!limited) {
+            return;
+        }
+        Thread ticker = new Thread(this::run, "egress-scheduler");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // resume runs (from the scheduler thread) when a flow that had to wait gets its turn
+    Flow open(Runnable resume) {
+        return new Flow(resume);
+    }
+
+    // The bytes the flow may queue now: all it wants, or 0 if it has to wait until its resume runs.
+    // bufferAhead is the media the viewer has ahead of its playhead, in seconds.
+    int acquire(Flow flow, int wanted, double bufferAhead) {
+        if (!limited) {
+            return wanted;
+        }
+        synchronized (this) {
+            if (flow.queued) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            refill(now);
+            flow.urgent = bufferAhead < lowBufferSeconds;
+            flow.wanted = wanted;
+            if (!flow.admitted) {
+                if (sessionRateBytes > 0 && flow.refill(now) <= 0) {
+                    throttles.increment();
+                    flow.queued = true;
+                    throttled.add(flow);
+                    return 0;
+                }
+                if (rateBytes > 0 && (tokens <= 0 || !waiting.isEmpty())) {
+                    enqueue(flow, now);
+                    return 0;
+                }
+                tokens -= wanted;
+            } else {
+                tokens -= wanted - flow.prepaid; // the scheduler paid an estimate when it resumed the flow
+                flow.admitted = false;
+                flow.prepaid = 0;
+            }
+            flow.tokens -= wanted;
+            virtualClock = Math.max(virtualClock, flow.virtualTime);
+            flow.virtualTime += wanted / (flow.urgent ? lowBufferWeight : 1);
+            if (flow.urgent) {
+                urgentGrants.increment();
+            }
+            return wanted;
+        }
+    }
+
+    // The flow stopped streaming: out of the queues, and whatever was paid for it and not used goes back
+    void cancel(Flow flow) {
+        if (!limited) {
+            return;
+        }
+        synchronized (this) {
+            if (flow.queued) {
+                waiting.remove(flow);
+                throttled.remove(flow);
+                flow.queued = false;
+            }
+            tokens += flow.prepaid;
+            flow.prepaid = 0;
+            flow.admitted = false;
+        }
+    }
+
+    private void enqueue(Flow flow, long now) {
+        // a flow coming back from idle does not get the share it did not use meanwhile
+        flow.virtualTime = Math.max(flow.virtualTime, virtualClock);
+        flow.sequence = sequence++;
+        flow.queued = true;
+        flow.queuedAt = now;
+        waiting.add(flow);
+        deferrals.increment();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            tick();
+        }
+    }
+
+    // Resumes the flows whose turn has come with the tokens gathered since the last tick
+    private synchronized void tick() {
+        long now = System.nanoTime();
+        refill(now);
+        for (Iterator<Flow> flows = throttled.iterator(); flows.hasNext(); ) {
+            Flow flow = flows.next();
+            if (flow.refill(now) > 0) {
+                flows.remove();
+                if (rateBytes > 0) {
+                    flow.queued = false;
+                    enqueue(flow, now);
+                } else {
+                    resume(flow, now);
+                }
+            }
+        }
+        while (!waiting.isEmpty() && (rateBytes == 0 || tokens > 0)) {
+            Flow flow = waiting.poll();
+            tokens -= flow.wanted;
+            flow.prepaid = flow.wanted;
+            resume(flow, now);
+        }
+    }
+
+    private void resume(Flow flow, long now) {
+        flow.queued = false;
+        flow.admitted = true;
+        waitMicros.record((now - flow.queuedAt) / 1000);
+        flow.resume.run();
+    }
+
+    private void refill(long now) {
+        if (rateBytes > 0) {
+            tokens = Math.min(burst(rateBytes), tokens + rateBytes * (now - refilledAt) / 1e9);
+        }
+        refilledAt = now;
+    }
+
+    private static double burst(long rate) {
+        return Math.max(rate * BURST_SECONDS, MIN_BURST_BYTES);
+    }
+
+    long getRateBytes() {
+        return rateBytes;
+    }
+
+    long getDeferrals() {
+        return deferrals.sum();
+    }
+
+    long getThrottles() {
+        return throttles.sum();
+    }
+
+    long getUrgentGrants() {
+        return urgentGrants.sum();
+    }
+
+    synchronized int getWaitingSessions() {
+        return waiting.size() + throttled.size();
+    }
+
+    Histogram getWaitMicros() {
+        return waitMicros;
+    }
+
+    // One streaming session's place in the scheduler, guarded by the scheduler
+    final class Flow implements Comparable<Flow> {
+        private final Runnable resume;
+        private double tokens = burst(sessionRateBytes); // the session's own bucket, when sessions are capped
+        private long refilledAt = System.nanoTime();
+        private double virtualTime = 0; // bytes received so far, divided by the weight they were sent with
+        private boolean urgent;
+        private boolean queued;
+        private boolean admitted; // resumed, its next chunk goes out whatever the queue
+        private int wanted; // size of the chunk it waits to send
+        private int prepaid;
+        private long queuedAt;
+        private long sequence;
+
+        private Flow(Runnable resume) {
+            this.resume = resume;
+        }
+
+        private double refill(long now) {
+            if (sessionRateBytes > 0) {
+                tokens = Math.min(burst(sessionRateBytes), tokens + sessionRateBytes * (now - refilledAt) / 1e9);
+            }
+            refilledAt = now;
+            return sessionRateBytes > 0 ? tokens : 1;
+        }
+
+        @Override
+        public int compareTo(Flow other) {
+            if (urgent != other.urgent) {
+                return urgent ? -1 : 1;
+            }
+            int byShare = Double.compare(virtualTime, other.virtualTime);
+            return byShare != 0 ? byShare : Long.compare(sequence, other.sequence);
+        }
+    }
+}
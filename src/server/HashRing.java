@@ -0,0 +1,64 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Consistent hashing of video ids over the registered child nodes. Each node takes many points on the ring, a video
+// belongs to the first nodes found clockwise from its own hash. A node joining or leaving only moves the videos
+// next to its points, about 1/n of them, instead of reshuffling every placement.
+class HashRing {
+    private static final int POINTS_PER_NODE = 64;
+
+    private final TreeMap<Long, RemoteNode> ring = new TreeMap<>();
+
+    void add(RemoteNode node) {
+        for (int i = 0; i < POINTS_PER_NODE; i++) {
+            ring.put(hash(node.getHost() + ":" + node.getPort() + "#" + i), node);
+        }
+    }
+
+    void remove(RemoteNode node) {
+        ring.values().removeIf(point -> point == node);
+    }
+
+    // The `count` distinct nodes the video is placed on, in ring order (fewer if fewer nodes are registered)
+    List<RemoteNode> owners(String videoId, int count) {
+        List<RemoteNode> owners = new ArrayList<>(count);
+        if (ring.isEmpty()) {
+            return owners;
+        }
+        long start = hash(videoId);
+        for (RemoteNode node : ring.tailMap(start).values()) {
+            if (owners.size() >= count) {
+                return owners;
+            }
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+        for (RemoteNode node : ring.headMap(start).values()) { // wraps around
+            if (owners.size() >= count) {
+                return owners;
+            }
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+        return owners;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
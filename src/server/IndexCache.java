@@ -0,0 +1,103 @@
+package server;
+
+import inc.Log;
+import model.VideoMetadata;
+
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+// Container and segment indexes of the videos being streamed, built once per file version on the worker pool and
+// shared by every session of the video, and by the manifests sent to clients. The least recently used are dropped
+// past the configured count; files that have no sample tables (not MP4, or damaged) get fixed-size segments and are
+// not parsed again.
+class IndexCache {
+    private final int capacity;
+    private final Executor loader;
+    private final boolean keyframeSegments;
+    private final double segmentSeconds;
+    private final int segmentSize;
+    private final LinkedHashMap<String, SegmentIndex> indexes = new LinkedHashMap<>(16, 0.75f, true); // guarded by this
+    private final ConcurrentHashMap<String, CompletableFuture<SegmentIndex>> loading = new ConcurrentHashMap<>();
+
+    IndexCache(int capacity, Executor loader, boolean keyframeSegments, double segmentSeconds, int segmentSize) {
+        this.capacity = capacity;
+        this.loader = loader;
+        this.keyframeSegments = keyframeSegments;
+        this.segmentSeconds = segmentSeconds;
+        this.segmentSize = segmentSize;
+    }
+
+    boolean isKeyframeSegments() {
+        return keyframeSegments;
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    // The index if it was built already, null if it was not
+    synchronized SegmentIndex getIfPresent(VideoMetadata video) {
+        return indexes.get(key(video));
+    }
+
+    // Parses the file on the loader pool, every session asking meanwhile gets the same future
+    CompletableFuture<SegmentIndex> load(VideoMetadata video) {
+        String key = key(video);
+        SegmentIndex cached = getIfPresent(video);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<SegmentIndex> created = new CompletableFuture<>();
+        CompletableFuture<SegmentIndex> existing = loading.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            loader.execute(() -> {
+                try {
+                    Mp4Index media;
+                    long start = System.nanoTime();
+                    try {
+                        media = Mp4Index.read(Paths.get(video.getFilePath()));
+                    } catch (Exception e) {
+                        Log.warn("Could not index " + video.getTitle() + ": " + e.getMessage());
+                        media = null;
+                    }
+                    SegmentIndex index = keyframeSegments
+                            ? SegmentIndex.keyframeAligned(video.getFileSize(), media, segmentSeconds, segmentSize)
+                            : SegmentIndex.fixed(video.getFileSize(), segmentSize, media);
+                    Log.debug("Indexed " + video.getTitle() + " in " + (System.nanoTime() - start) / 1000 + " us, " + index.count()
+                            + (index.isKeyframeAligned() ? " keyframe" : " fixed") + " segments" + (media == null ? " (no sample tables)" : ""));
+                    put(key, index);
+                    created.complete(index);
+                } catch (Exception e) {
+                    Log.error("Could not build the segment index of " + video.getTitle(), e);
+                    created.completeExceptionally(e); // asked again by the next stream of the video
+                } finally {
+                    loading.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loading.remove(key);
+            created.completeExceptionally(e); // pool full: asked again by the next stream of the video
+        }
+        return created;
+    }
+
+    private synchronized void put(String key, SegmentIndex index) {
+        indexes.put(key, index);
+        Iterator<Map.Entry<String, SegmentIndex>> eldest = indexes.entrySet().iterator();
+        while (indexes.size() > capacity && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    // a modified file is a new version, the stale entry ages out
+    private static String key(VideoMetadata video) {
+        return video.getFilePath() + "@" + video.getLastModified() + ":" + video.getFileSize();
+    }
+}
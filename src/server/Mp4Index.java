@@ -0,0 +1,354 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Time <-> byte offset map of an MP4 file, built once from the sample tables of its moov box: where each chunk of
+// samples of the audio and video tracks starts in the file, and at which media time. Pacing, buffer-ahead and
+// seeks follow the real bitrate of the content instead of a constant fileSize / duration. The sync samples of the
+// video track are kept too, where segments can be cut so that each one starts decodable.
+class Mp4Index {
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    private final double duration; // seconds
+    private final long fileSize;
+    private final long[] offsets; // ascending
+    private final double[] times; // media time playable once the bytes up to the offset arrived, non-decreasing
+    private final long[] keyframeOffsets; // ascending, empty if the video track has no sample sizes
+    private final double[] keyframeTimes;
+
+    private Mp4Index(double duration, long fileSize, long[] offsets, double[] times, long[] keyframeOffsets, double[] keyframeTimes) {
+        this.duration = duration;
+        this.fileSize = fileSize;
+        this.offsets = offsets;
+        this.times = times;
+        this.keyframeOffsets = keyframeOffsets;
+        this.keyframeTimes = keyframeTimes;
+    }
+
+    // The index of the file, null if it is not an MP4 with sample tables (fragmented files have none in their moov)
+    static Mp4Index read(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            List<long[]> boxes = topLevelBoxes(file); // { type, payload start, end }
+            ByteBuffer moov = null;
+            long mediaEnd = size;
+            for (long[] box : boxes) {
+                if (box[0] == type("moov") && moov == null) {
+                    moov = read(file, box[1], box[2]);
+                } else if (box[0] == type("mdat")) {
+                    mediaEnd = box[2];
+                }
+            }
+            if (moov == null) {
+                return null;
+            }
+
+            List<double[]> chunks = new ArrayList<>(); // { offset, time }
+            List<double[]> keyframes = new ArrayList<>(); // { offset, time } of the first video track
+            boolean videoTrack = false;
+            double trackDuration = 0;
+            for (ByteBuffer trak : children(moov, "trak")) {
+                ByteBuffer mdia = child(trak, "mdia");
+                ByteBuffer hdlr = mdia != null ? child(mdia, "hdlr") : null;
+                ByteBuffer mdhd = mdia != null ? child(mdia, "mdhd") : null;
+                ByteBuffer minf = mdia != null ? child(mdia, "minf") : null;
+                ByteBuffer stbl = minf != null ? child(minf, "stbl") : null;
+                if (hdlr == null || mdhd == null || stbl == null || hdlr.remaining() < 12) {
+                    continue;
+                }
+                int handler = hdlr.getInt(8);
+                if (handler != (int) type("vide") && handler != (int) type("soun")) {
+                    continue; // hint, text or metadata tracks do not hold playback back
+                }
+                long[] scale = timescaleAndDuration(mdhd);
+                if (scale[0] <= 0) {
+                    continue;
+                }
+                trackDuration = Math.max(trackDuration, (double) scale[1] / scale[0]);
+                boolean video = handler == (int) type("vide") && !videoTrack;
+                videoTrack |= video;
+                addChunks(stbl, scale[0], chunks, video ? keyframes : null);
+            }
+            if (chunks.isEmpty()) {
+                return null;
+            }
+
+            ByteBuffer mvhd = child(moov, "mvhd");
+            long[] movie = mvhd != null ? timescaleAndDuration(mvhd) : new long[] { 0, 0 };
+            double duration = movie[0] > 0 && movie[1] > 0 ? (double) movie[1] / movie[0] : trackDuration;
+
+            chunks.sort(Comparator.comparingDouble(chunk -> chunk[0]));
+            int count = chunks.size() + 1;
+            long[] offsets = new long[count];
+            double[] times = new double[count];
+            for (int i = 0; i < chunks.size(); i++) {
+                offsets[i] = (long) chunks.get(i)[0];
+                times[i] = chunks.get(i)[1];
+            }
+            // the end of the media data plays to the end
+            offsets[count - 1] = Math.max(mediaEnd, offsets[count - 2]);
+            times[count - 1] = duration;
+            // interleaved tracks: what plays at an offset is bounded by the track furthest behind after it
+            for (int i = count - 2; i >= 0; i--) {
+                times[i] = Math.min(times[i], times[i + 1]);
+            }
+            keyframes.sort(Comparator.comparingDouble(keyframe -> keyframe[0]));
+            long[] keyframeOffsets = new long[keyframes.size()];
+            double[] keyframeTimes = new double[keyframes.size()];
+            for (int i = 0; i < keyframes.size(); i++) {
+                keyframeOffsets[i] = (long) keyframes.get(i)[0];
+                keyframeTimes[i] = keyframes.get(i)[1];
+            }
+            return new Mp4Index(duration, size, offsets, times, keyframeOffsets, keyframeTimes);
+        }
+    }
+
+    // Duration from the movie header alone, 0 when the file has none
+    static double readDuration(Path path) {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (long[] box : topLevelBoxes(file)) {
+                if (box[0] == type("moov")) {
+                    ByteBuffer mvhd = child(read(file, box[1], box[2]), "mvhd");
+                    long[] movie = mvhd != null ? timescaleAndDuration(mvhd) : new long[] { 0, 0 };
+                    return movie[0] > 0 ? (double) movie[1] / movie[0] : 0;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not an MP4, or a damaged one: its duration stays unknown
+        }
+        return 0;
+    }
+
+    double getDuration() {
+        return duration;
+    }
+
+    // Where the first sample starts: what precedes it (ftyp, and moov in a faststart file) opens the file
+    long getMediaStart() {
+        return offsets[0];
+    }
+
+    int getKeyframeCount() {
+        return keyframeOffsets.length;
+    }
+
+    // Where the sync sample starts in the file, and its presentation time
+    long getKeyframeOffset(int keyframe) {
+        return keyframeOffsets[keyframe];
+    }
+
+    double getKeyframeTime(int keyframe) {
+        return keyframeTimes[keyframe];
+    }
+
+    // Media time playable once the bytes before offset arrived
+    double timeAt(long offset) {
+        int i = Arrays.binarySearch(offsets, offset);
+        if (i < 0) {
+            i = -i - 2; // last entry before offset
+        }
+        if (i < 0) {
+            return 0;
+        }
+        if (i >= offsets.length - 1) {
+            return duration;
+        }
+        double span = offsets[i + 1] - offsets[i];
+        return span <= 0 ? times[i] : times[i] + (times[i + 1] - times[i]) * (offset - offsets[i]) / span;
+    }
+
+    // Offset up to which the bytes are needed to play until time
+    long offsetAt(double time) {
+        if (time >= duration) {
+            return fileSize;
+        }
+        int low = 0;
+        int high = times.length - 1;
+        while (low < high) { // first entry reaching time
+            int middle = (low + high) >>> 1;
+            if (times[middle] >= time) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        if (low == 0) {
+            return offsets[0];
+        }
+        double span = times[low] - times[low - 1];
+        return span <= 0 ? offsets[low] : offsets[low - 1] + (long) ((offsets[low] - offsets[low - 1]) * (time - times[low - 1]) / span);
+    }
+
+    // Start offset and start time of every chunk of the track, from its chunk offsets (stco/co64), samples per
+    // chunk (stsc) and sample durations (stts). With keyframes, also the offset and time of its sync samples (stss,
+    // every sample when absent), located with the sample sizes (stsz).
+    private static void addChunks(ByteBuffer stbl, long timescale, List<double[]> chunks, List<double[]> keyframes) {
+        ByteBuffer stco = child(stbl, "stco");
+        ByteBuffer co64 = child(stbl, "co64");
+        ByteBuffer stsc = child(stbl, "stsc");
+        ByteBuffer stts = child(stbl, "stts");
+        if ((stco == null && co64 == null) || stsc == null || stts == null) {
+            return;
+        }
+        ByteBuffer stsz = keyframes != null ? child(stbl, "stsz") : null;
+        ByteBuffer stss = stsz != null ? child(stbl, "stss") : null;
+        int chunkCount = stco != null ? stco.getInt(4) : co64.getInt(4);
+        int stscCount = stsc.getInt(4);
+        int sttsCount = stts.getInt(4);
+        int fixedSampleSize = stsz != null ? stsz.getInt(4) : 0;
+        int sampleCount = stsz != null ? stsz.getInt(8) : 0;
+        int syncCount = stss != null ? stss.getInt(4) : 0;
+
+        int stscEntry = 0;
+        int sttsEntry = 0;
+        int syncEntry = 0;
+        long sttsLeft = sttsCount > 0 ? Integer.toUnsignedLong(stts.getInt(8)) : 0;
+        long ticks = 0;
+        int sample = 0; // first sample of the chunk, 0-based
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            long offset = stco != null ? Integer.toUnsignedLong(stco.getInt(8 + 4 * chunk)) : co64.getLong(8 + 8 * chunk);
+            chunks.add(new double[] { offset, (double) ticks / timescale });
+
+            // samples per chunk: the stsc entry whose first chunk (1-based) is the last one not after this chunk
+            while (stscEntry + 1 < stscCount && stsc.getInt(8 + 12 * (stscEntry + 1)) <= chunk + 1) {
+                stscEntry++;
+            }
+            long samples = stscCount > 0 ? Integer.toUnsignedLong(stsc.getInt(8 + 12 * stscEntry + 4)) : 0;
+            if (stsz != null) {
+                // sample by sample: where each one starts within the chunk
+                long sampleOffset = offset;
+                for (long i = 0; i < samples && sample < sampleCount; i++, sample++) {
+                    while (syncEntry < syncCount && Integer.toUnsignedLong(stss.getInt(8 + 4 * syncEntry)) < sample + 1) {
+                        syncEntry++;
+                    }
+                    if (stss == null || (syncEntry < syncCount && stss.getInt(8 + 4 * syncEntry) == sample + 1)) {
+                        keyframes.add(new double[] { sampleOffset, (double) ticks / timescale });
+                    }
+                    sampleOffset += fixedSampleSize != 0 ? Integer.toUnsignedLong(fixedSampleSize) : Integer.toUnsignedLong(stsz.getInt(12 + 4 * sample));
+                    if (sttsEntry < sttsCount) {
+                        ticks += Integer.toUnsignedLong(stts.getInt(8 + 8 * sttsEntry + 4));
+                        if (--sttsLeft == 0 && ++sttsEntry < sttsCount) {
+                            sttsLeft = Integer.toUnsignedLong(stts.getInt(8 + 8 * sttsEntry));
+                        }
+                    }
+                }
+                continue;
+            }
+            while (samples > 0 && sttsEntry < sttsCount) {
+                long taken = Math.min(samples, sttsLeft);
+                ticks += taken * Integer.toUnsignedLong(stts.getInt(8 + 8 * sttsEntry + 4));
+                samples -= taken;
+                sttsLeft -= taken;
+                if (sttsLeft == 0 && ++sttsEntry < sttsCount) {
+                    sttsLeft = Integer.toUnsignedLong(stts.getInt(8 + 8 * sttsEntry));
+                }
+            }
+        }
+    }
+
+    // { timescale, duration } of a mvhd or mdhd box, both versions
+    private static long[] timescaleAndDuration(ByteBuffer header) {
+        if (header.get(0) == 1) {
+            return new long[] { Integer.toUnsignedLong(header.getInt(20)), header.getLong(24) };
+        }
+        return new long[] { Integer.toUnsignedLong(header.getInt(12)), Integer.toUnsignedLong(header.getInt(16)) };
+    }
+
+    // { type, payload start, end } of the boxes at the root of the file, up to the first thing that is not a box
+    private static List<long[]> topLevelBoxes(FileChannel file) throws IOException {
+        List<long[]> boxes = new ArrayList<>();
+        long size = file.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (position + 8 <= size) {
+            header.clear();
+            file.read(header, position);
+            header.flip();
+            if (header.remaining() < 8) {
+                break;
+            }
+            long boxSize = Integer.toUnsignedLong(header.getInt(0));
+            long type = Integer.toUnsignedLong(header.getInt(4));
+            int headerSize = 8;
+            if (boxSize == 1 && header.remaining() >= 16) {
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - position; // to the end of the file
+            }
+            if (!isBoxType(type) || boxSize < headerSize || position + boxSize > size) {
+                break;
+            }
+            boxes.add(new long[] { type, position + headerSize, position + boxSize });
+            position += boxSize;
+        }
+        return boxes;
+    }
+
+    private static ByteBuffer read(FileChannel file, long start, long end) throws IOException {
+        if (end - start > MAX_MOOV_SIZE) {
+            throw new IOException("moov box of " + (end - start) + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, start + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer child(ByteBuffer parent, String type) {
+        List<ByteBuffer> found = children(parent, type);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    // Payloads of the direct children of the given type
+    private static List<ByteBuffer> children(ByteBuffer parent, String type) {
+        List<ByteBuffer> found = new ArrayList<>();
+        int wanted = (int) type(type);
+        int position = 0;
+        while (position + 8 <= parent.limit()) {
+            long size = Integer.toUnsignedLong(parent.getInt(position));
+            int headerSize = 8;
+            if (size == 1 && position + 16 <= parent.limit()) {
+                size = parent.getLong(position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = parent.limit() - position;
+            }
+            if (size < headerSize || position + size > parent.limit()) {
+                break;
+            }
+            if (parent.getInt(position + 4) == wanted) {
+                found.add(parent.slice(position + headerSize, (int) size - headerSize));
+            }
+            position += (int) size;
+        }
+        return found;
+    }
+
+    private static long type(String name) {
+        return Integer.toUnsignedLong(ByteBuffer.wrap(name.getBytes(StandardCharsets.US_ASCII)).getInt());
+    }
+
+    private static boolean isBoxType(long type) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            long c = (type >> shift) & 0xFF;
+            if (c < 0x20 || c > 0x7E) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,165 @@
+package server;
+
+import inc.Log;
+import model.VideoMetadata;
+
+import java.util.*;
+
+// Child nodes registered with the central server and the videos each one holds. A video enters the central catalog
+// with its first holder and leaves it with its last, so the same file on several nodes is listed once.
+// Hot videos are copied to the nodes the hash ring places them on, and the copies dropped once they cool down.
+class NodeRegistry {
+    private static final long REPLICA_TIMEOUT_NANOS = 10 * 60 * 1_000_000_000L; // then a copy not reported is asked again
+
+    private final CentralVideoServer centralServer;
+    private final Map<RemoteNode, Map<String, VideoMetadata>> videosByNode = new HashMap<>();
+    private final Map<String, Set<RemoteNode>> holders = new HashMap<>(); // video id -> nodes holding it
+    private final HashRing ring = new HashRing();
+    private final Map<String, Map<RemoteNode, Long>> pendingReplicas = new HashMap<>(); // video id -> node -> asked at
+    private final Set<String> replicated = new HashSet<>(); // videos copied because they were hot
+
+    NodeRegistry(CentralVideoServer centralServer) {
+        this.centralServer = centralServer;
+    }
+
+    synchronized RemoteNode register(String host, int port, ClientSession session) {
+        RemoteNode node = new RemoteNode(host, port, session);
+        videosByNode.put(node, new HashMap<>());
+        ring.add(node);
+        Log.info("Node registered: " + node);
+        return node;
+    }
+
+    // The node's catalog changed (its whole catalog right after registering)
+    synchronized void update(RemoteNode node, List<VideoMetadata> added, List<String> removedIds) {
+        Map<String, VideoMetadata> videos = videosByNode.get(node);
+        if (videos == null) {
+            return; // unregistered meanwhile
+        }
+        List<VideoMetadata> entering = new ArrayList<>();
+        List<VideoMetadata> leaving = new ArrayList<>();
+        for (VideoMetadata video : added) {
+            video.setFilePath(null); // not readable from here
+            videos.put(video.getId(), video);
+            Set<RemoteNode> nodes = holders.computeIfAbsent(video.getId(), id -> new HashSet<>());
+            if (nodes.isEmpty()) {
+                entering.add(video);
+            }
+            nodes.add(node);
+            Map<RemoteNode, Long> pending = pendingReplicas.get(video.getId());
+            if (pending != null) {
+                pending.remove(node);
+            }
+        }
+        for (String id : removedIds) {
+            if (videos.remove(id) != null) {
+                release(node, id, leaving);
+            }
+        }
+        centralServer.updateIndex(entering, leaving);
+    }
+
+    synchronized void unregister(RemoteNode node) {
+        Map<String, VideoMetadata> videos = videosByNode.remove(node);
+        if (videos == null) {
+            return;
+        }
+        ring.remove(node);
+        for (Map<RemoteNode, Long> pending : pendingReplicas.values()) {
+            pending.remove(node);
+        }
+        List<VideoMetadata> leaving = new ArrayList<>();
+        for (String id : videos.keySet()) {
+            release(node, id, leaving);
+        }
+        centralServer.updateIndex(List.of(), leaving);
+        Log.info("Node unregistered: " + node + ", " + leaving.size() + " videos left the catalog");
+    }
+
+    private void release(RemoteNode node, String id, List<VideoMetadata> leaving) {
+        Set<RemoteNode> nodes = holders.get(id);
+        if (nodes == null) {
+            return;
+        }
+        nodes.remove(node);
+        if (nodes.isEmpty()) {
+            holders.remove(id);
+            VideoMetadata listed = centralServer.getVideo(id);
+            if (listed != null && listed.getFilePath() == null) { // a local copy keeps it listed
+                leaving.add(listed);
+            }
+        }
+    }
+
+    // The least loaded node holding the video, or null when it is best served here (localLoad < 0: not held here)
+    synchronized RemoteNode choose(String videoId, double localLoad) {
+        RemoteNode best = null;
+        for (RemoteNode node : holders.getOrDefault(videoId, Set.of())) {
+            if (best == null || node.getLoad() < best.getLoad()) {
+                best = node;
+            }
+        }
+        if (best == null || (localLoad >= 0 && localLoad <= best.getLoad())) {
+            return null;
+        }
+        best.assigned();
+        return best;
+    }
+
+    // Brings the copies in line with popularity: each hot video on its `copies` ring owners, taken from its least
+    // loaded holder (or from this server at selfHost:selfPort), and the copies of videos no longer hot dropped from
+    // every holder but its first owner. Nodes only ever delete their copies, never the files of their own directories.
+    synchronized void rebalance(List<String> hotIds, int copies, String selfHost, int selfPort) {
+        long now = System.nanoTime();
+        for (Map<RemoteNode, Long> pending : pendingReplicas.values()) {
+            pending.values().removeIf(askedAt -> now - askedAt > REPLICA_TIMEOUT_NANOS);
+        }
+
+        for (String id : hotIds) {
+            VideoMetadata video = centralServer.getVideo(id);
+            if (video == null) {
+                continue;
+            }
+            Set<RemoteNode> nodes = holders.getOrDefault(id, Set.of());
+            RemoteNode source = null;
+            for (RemoteNode node : nodes) {
+                if (source == null || node.getLoad() < source.getLoad()) {
+                    source = node;
+                }
+            }
+            if (source == null && video.getFilePath() == null) {
+                continue; // no copy left to take
+            }
+            Map<RemoteNode, Long> pending = pendingReplicas.computeIfAbsent(id, key -> new HashMap<>());
+            for (RemoteNode owner : ring.owners(id, copies)) {
+                if (nodes.contains(owner) || pending.containsKey(owner)) {
+                    continue;
+                }
+                Log.info("Replicating " + video.getTitle() + " to " + owner);
+                owner.getSession().sendReplicate(video, source != null ? source.getHost() : selfHost, source != null ? source.getPort() : selfPort);
+                pending.put(owner, now);
+                replicated.add(id);
+            }
+        }
+
+        Set<String> hot = new HashSet<>(hotIds);
+        for (Iterator<String> iterator = replicated.iterator(); iterator.hasNext(); ) {
+            String id = iterator.next();
+            if (hot.contains(id)) {
+                continue;
+            }
+            iterator.remove();
+            pendingReplicas.remove(id);
+            List<RemoteNode> keep = ring.owners(id, 1);
+            for (RemoteNode node : holders.getOrDefault(id, Set.of())) {
+                if (!keep.contains(node)) {
+                    node.getSession().sendDropReplica(id);
+                }
+            }
+        }
+    }
+
+    synchronized int size() {
+        return videosByNode.size();
+    }
+}
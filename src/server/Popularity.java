@@ -0,0 +1,51 @@
+package server;
+
+import java.util.*;
+
+// How often each video is asked for lately: every STREAM request adds one to the video's score, and scores halve
+// over a fixed half-life, so a title that stops being watched cools down on its own.
+class Popularity {
+    private static final double MIN_HOT_SCORE = 3; // a single viewer does not make a title hot
+    private static final double FORGOTTEN_SCORE = 0.05;
+    private static final long DECAY_STEP_NANOS = 1_000_000_000L; // scores are decayed at most once a second
+
+    private final long halfLifeNanos;
+    private final Map<String, Double> scores = new HashMap<>();
+    private long decayedAt = System.nanoTime();
+
+    Popularity(long halfLifeSeconds) {
+        this.halfLifeNanos = Math.max(1, halfLifeSeconds) * 1_000_000_000L;
+    }
+
+    synchronized void record(String videoId) {
+        decay();
+        scores.merge(videoId, 1.0, Double::sum);
+    }
+
+    // The most requested videos, the top `fraction` of a catalog of `catalogSize` titles (at least one)
+    synchronized List<String> hottest(double fraction, int catalogSize) {
+        decay();
+        int limit = Math.max(1, (int) Math.ceil(fraction * catalogSize));
+        List<Map.Entry<String, Double>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+        List<String> hot = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : ranked) {
+            if (hot.size() >= limit || entry.getValue() < MIN_HOT_SCORE) {
+                break;
+            }
+            hot.add(entry.getKey());
+        }
+        return hot;
+    }
+
+    private void decay() {
+        long now = System.nanoTime();
+        if (now - decayedAt < DECAY_STEP_NANOS) {
+            return;
+        }
+        double factor = Math.pow(0.5, (double) (now - decayedAt) / halfLifeNanos);
+        decayedAt = now;
+        scores.replaceAll((id, score) -> score * factor);
+        scores.values().removeIf(score -> score < FORGOTTEN_SCORE);
+    }
+}
@@ -0,0 +1,54 @@
+package server;
+
+// A child server process registered with this central server, and the load it last reported
+class RemoteNode {
+    static final long EGRESS_PER_SESSION = 1024 * 1024; // bytes/s weighing as much as one more session in the load score
+
+    private final String host;
+    private final int port;
+    private final ClientSession session; // the node's connection to this server, commands are sent on it
+    private volatile int sessions = 0;
+    private volatile long egressRate = 0; // bytes per second
+
+    RemoteNode(String host, int port, ClientSession session) {
+        this.host = host;
+        this.port = port;
+        this.session = session;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    ClientSession getSession() {
+        return session;
+    }
+
+    // A client was just sent there: counted until the next report, so a burst of requests is not all sent to one node
+    void assigned() {
+        sessions++;
+    }
+
+    void setLoad(int sessions, long egressRate) {
+        this.sessions = sessions;
+        this.egressRate = egressRate;
+    }
+
+    double getLoad() {
+        return load(sessions, egressRate);
+    }
+
+    // Lower is less busy: active sessions, plus the egress counted in typical streams
+    static double load(int sessions, long egressRate) {
+        return sessions + (double) egressRate / EGRESS_PER_SESSION;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port + "[sessions=" + sessions + ", egress=" + egressRate + "B/s]";
+    }
+}
@@ -0,0 +1,201 @@
+package server;
+
+import inc.Log;
+import model.VideoMetadata;
+import protocol.FrameReader;
+import protocol.FrameWriter;
+import protocol.Protocol;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+// Copies of hot videos a child node keeps on request of the central server, one directory per video id under the
+// replica directory. A copy keeps the id of the original, so the central server counts this node as one more holder
+// of the same video. It is downloaded aside, published once complete, and deleted when the video cools down.
+class ReplicaStore {
+    private static final String PART_SUFFIX = ".part";
+    private static final int MAX_REDIRECTS = 3;
+
+    private final CentralVideoServer centralServer;
+    private final Path directory;
+    private final CatalogIndex index; // durations of the copies, read once per copy
+    private final Map<String, VideoMetadata> replicas = new ConcurrentHashMap<>();
+    private final Set<String> wanted = ConcurrentHashMap.newKeySet(); // being fetched or kept
+    private final ExecutorService fetcher = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "replica-fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ReplicaStore(CentralVideoServer centralServer, Path directory) {
+        this.centralServer = centralServer;
+        this.directory = directory;
+        this.index = new CatalogIndex(directory);
+        try {
+            Files.createDirectories(directory);
+            load();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the replica directory " + directory, e);
+        }
+        centralServer.updateIndex(new ArrayList<>(replicas.values()), List.of());
+        Log.info(directory + ": " + replicas.size() + " replicas");
+    }
+
+    // Copies kept from a previous run, downloads it left unfinished are deleted
+    private void load() throws IOException {
+        List<Path> kept = new ArrayList<>();
+        try (Stream<Path> folders = Files.list(directory)) {
+            for (Path folder : folders.filter(Files::isDirectory).toList()) {
+                try (Stream<Path> files = Files.list(folder)) {
+                    for (Path file : files.toList()) {
+                        if (file.getFileName().toString().endsWith(PART_SUFFIX)) {
+                            Files.deleteIfExists(file);
+                        } else {
+                            replicas.put(folder.getFileName().toString(), describe(folder.getFileName().toString(), file));
+                            kept.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        index.retain(kept);
+        index.save();
+        wanted.addAll(replicas.keySet());
+    }
+
+    void fetch(VideoMetadata video, String sourceHost, int sourcePort) {
+        if (!wanted.add(video.getId())) {
+            return; // held or on its way
+        }
+        fetcher.execute(() -> {
+            try {
+                download(video, sourceHost, sourcePort);
+            } catch (Exception e) {
+                // asked again by the central server's next replication round, from a clean folder
+                Log.warn("Could not replicate " + video.getTitle() + " from " + sourceHost + ":" + sourcePort + ": " + e);
+                if (!replicas.containsKey(video.getId())) {
+                    wanted.remove(video.getId());
+                    delete(video.getId());
+                }
+            }
+        });
+    }
+
+    void drop(String videoId) {
+        wanted.remove(videoId);
+        VideoMetadata replica = replicas.remove(videoId);
+        if (replica == null) {
+            return; // not a copy of ours, or still downloading (discarded once done)
+        }
+        centralServer.updateIndex(List.of(), List.of(replica));
+        delete(videoId);
+        Log.info("Dropped the replica of " + replica.getTitle());
+    }
+
+    // The whole file in one RANGE, which the source sends without waiting for playback credit
+    private void download(VideoMetadata video, String host, int port) throws IOException {
+        Path folder = directory.resolve(video.getId());
+        Files.createDirectories(folder);
+        Path part = folder.resolve(video.getTitle() + PART_SUFFIX);
+        long start = System.nanoTime();
+        for (int attempt = 0; ; attempt++) {
+            String redirectHost = null;
+            int redirectPort = 0;
+            try (Socket socket = new Socket(host, port);
+                 FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                FrameWriter out = new FrameWriter(socket.getOutputStream());
+                FrameReader in = new FrameReader(socket.getInputStream());
+                out.hello();
+                in.expectHello();
+                out.range(video.getId(), 0, video.getFileSize());
+                byte[] buffer = new byte[256 * 1024];
+                long position = 0;
+                boolean done = false;
+                while (!done && redirectHost == null) {
+                    switch (in.next()) {
+                        case Protocol.VIDEO_START -> {
+                            in.readString();
+                            in.readString();
+                            in.readLong();
+                            position = in.readLong();
+                        }
+                        case Protocol.PING -> out.pong(in.readLong());
+                        case Protocol.VIDEO_CHUNK -> {
+                            int length = in.length();
+                            if (length > buffer.length) {
+                                buffer = new byte[length];
+                            }
+                            in.readFully(buffer, 0, length);
+                            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+                            while (chunk.hasRemaining()) {
+                                file.write(chunk, position + chunk.position());
+                            }
+                            position += length;
+                        }
+                        case Protocol.REDIRECT -> {
+                            redirectHost = in.readString();
+                            redirectPort = in.readInt();
+                        }
+                        case Protocol.VIDEO_END -> done = true;
+                        case Protocol.VIDEO_ERROR -> throw new IOException(in.readString());
+                        default -> in.skipPayload();
+                    }
+                }
+                out.exit(false);
+            }
+            if (redirectHost == null) {
+                break;
+            }
+            if (attempt >= MAX_REDIRECTS) {
+                throw new IOException("too many redirects");
+            }
+            host = redirectHost;
+            port = redirectPort;
+        }
+        if (Files.size(part) != video.getFileSize()) {
+            throw new IOException("incomplete copy");
+        }
+
+        Path file = folder.resolve(video.getTitle());
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (!wanted.contains(video.getId())) {
+            delete(video.getId()); // dropped while downloading
+            return;
+        }
+        VideoMetadata replica = describe(video.getId(), file);
+        index.save();
+        replicas.put(video.getId(), replica);
+        centralServer.updateIndex(List.of(replica), List.of());
+        Log.info("Replicated " + video.getTitle() + " (" + video.getFileSize() + " bytes) in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private VideoMetadata describe(String videoId, Path file) throws IOException {
+        return index.resolve(file, Files.readAttributes(file, BasicFileAttributes.class), videoId);
+    }
+
+    private void delete(String videoId) {
+        Path folder = directory.resolve(videoId);
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : files.toList()) {
+                index.remove(file);
+                Files.deleteIfExists(file);
+            }
+            index.save();
+            Files.deleteIfExists(folder);
+        } catch (IOException e) {
+            Log.warn("could not delete the replica " + folder + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package server;
+
+// Periodically turns the request counts into placements: the hottest titles get more copies across the child
+// nodes, so the few titles that take most of the reads are not all served from one storage.
+class Replicator {
+    private static final long INTERVAL_MILLIS = 5000;
+
+    private final VideoStreamingServer server;
+    private final Popularity popularity;
+    private final double hotFraction;
+    private final int copies;
+    private final String selfHost;
+    private final int selfPort;
+
+    Replicator(VideoStreamingServer server, Popularity popularity, double hotFraction, int copies, String selfHost, int selfPort) {
+        this.server = server;
+        this.popularity = popularity;
+        this.hotFraction = hotFraction;
+        this.copies = copies;
+        this.selfHost = selfHost;
+        this.selfPort = selfPort;
+    }
+
+    void start() {
+        Thread replicator = new Thread(this::run, "replicator");
+        replicator.setDaemon(true);
+        replicator.start();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            NodeRegistry registry = server.getNodeRegistry();
+            if (registry.size() == 0) {
+                continue;
+            }
+            int catalogSize = server.getCentralServer().getAllAvailableVideos().size();
+            registry.rebalance(popularity.hottest(hotFraction, catalogSize), copies, selfHost, selfPort);
+        }
+    }
+}
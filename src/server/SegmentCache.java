@@ -0,0 +1,184 @@
+package server;
+
+import model.VideoMetadata;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Server-wide cache of video segments shared by every session, so a popular title is read from disk once
+// rather than once per viewer. Segments are the slices of a file its SegmentIndex cuts, held off-heap under their
+// start offset and length (a fixed and a keyframe layout of the same file never share an entry) and evicted least
+// recently used once the byte budget is exceeded. Concurrent misses on the same
+// segment share a single disk read.
+class SegmentCache {
+    private final long budgetBytes;
+    private final int segmentSize;
+    private final Executor loader;
+
+    private final LinkedHashMap<Key, ByteBuffer> segments = new LinkedHashMap<>(16, 0.75f, true); // access order = LRU
+    private final ConcurrentHashMap<Key, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+    private long usedBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    SegmentCache(long budgetBytes, int segmentSize, Executor loader) {
+        this.budgetBytes = budgetBytes;
+        this.segmentSize = segmentSize;
+        this.loader = loader;
+    }
+
+    boolean isEnabled() {
+        return budgetBytes > 0 && segmentSize > 0;
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    // Cached segment of these bounds (a private view of it), or null on a miss: the caller then waits on load()
+    ByteBuffer getIfPresent(String videoId, long start, int length) {
+        ByteBuffer segment;
+        synchronized (this) {
+            segment = segments.get(new Key(videoId, start, length));
+        }
+        (segment != null ? hits : misses).incrementAndGet();
+        return segment == null ? null : segment.duplicate();
+    }
+
+    // Reads the segment from disk on the loader pool; every session missing it at the same time gets the same future
+    CompletableFuture<ByteBuffer> load(VideoMetadata video, long start, int length) {
+        Key key = new Key(video.getId(), start, length);
+        synchronized (this) {
+            ByteBuffer cached = segments.get(key); // loaded since the caller's miss
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached.duplicate());
+            }
+        }
+        CompletableFuture<ByteBuffer> created = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> existing = loading.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing.thenApply(ByteBuffer::duplicate);
+        }
+
+        try {
+            loader.execute(() -> {
+                try {
+                    ByteBuffer segment = read(video, start, length);
+                    put(key, segment);
+                    created.complete(segment.duplicate());
+                } catch (IOException | RuntimeException e) {
+                    created.completeExceptionally(e);
+                } finally {
+                    loading.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loading.remove(key);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    private ByteBuffer read(VideoMetadata video, long start, int length) throws IOException {
+        try (FileChannel file = FileChannel.open(Paths.get(video.getFilePath()), StandardOpenOption.READ)) {
+            length = (int) Math.min(length, file.size() - start);
+            if (length <= 0) {
+                throw new EOFException("Segment at " + start + " is past the end of " + video.getTitle());
+            }
+            ByteBuffer segment = ByteBuffer.allocateDirect(length);
+            while (segment.hasRemaining()) {
+                if (file.read(segment, start + segment.position()) < 0) {
+                    throw new EOFException("File truncated while caching");
+                }
+            }
+            segment.flip();
+            return segment.asReadOnlyBuffer();
+        }
+    }
+
+    private synchronized void put(Key key, ByteBuffer segment) {
+        if (segment.capacity() > budgetBytes) {
+            return;
+        }
+        ByteBuffer previous = segments.put(key, segment);
+        if (previous != null) {
+            usedBytes -= previous.capacity();
+        }
+        usedBytes += segment.capacity();
+
+        // evicted buffers are not reused: sessions may still be sending from them, the GC frees them afterwards
+        Iterator<Map.Entry<Key, ByteBuffer>> eldest = segments.entrySet().iterator();
+        while (usedBytes > budgetBytes && eldest.hasNext()) {
+            usedBytes -= eldest.next().getValue().capacity();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    // Segments being read from disk, what a new stream of uncached data would wait behind
+    int getPendingLoads() {
+        return loading.size();
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentCache[used=" + getUsedBytes() + "/" + budgetBytes + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    private static final class Key {
+        private final String videoId;
+        private final long start;
+        private final int length;
+
+        private Key(String videoId, long start, int length) {
+            this.videoId = videoId;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return start == key.start && length == key.length && videoId.equals(key.videoId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(videoId, start, length);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package server;
+
+import java.util.Arrays;
+
+// How one version of a video is cut into numbered segments, the unit the segment cache holds and clients fetch with
+// SEGMENT. Either fixed-size slices of segment_size bytes, or (keyframe_segments) cuts at the first sync sample of
+// the video track segment_seconds after the previous cut, so that every segment starts decodable; a segment with no
+// sync sample within four segment sizes is cut there regardless. Segment 0 holds what precedes the first cut, the
+// file header when the moov box is at the front.
+class SegmentIndex {
+    private static final int MAX_SEGMENT_SIZES = 4; // a keyframe segment is at most this many segment_size bytes
+
+    private final long fileSize;
+    private final int segmentSize; // fixed layout
+    private final long[] starts; // keyframe layout, ascending from 0, null for the fixed one
+    private final Mp4Index media; // sample tables the segments were cut from, null if the file has none
+
+    private SegmentIndex(long fileSize, int segmentSize, long[] starts, Mp4Index media) {
+        this.fileSize = fileSize;
+        this.segmentSize = segmentSize;
+        this.starts = starts;
+        this.media = media;
+    }
+
+    // Slices of segmentSize bytes, a single segment if it is not positive
+    static SegmentIndex fixed(long fileSize, int segmentSize, Mp4Index media) {
+        return new SegmentIndex(fileSize, segmentSize > 0 ? segmentSize : (int) Math.min(Integer.MAX_VALUE, Math.max(1, fileSize)), null, media);
+    }
+
+    // Cut at keyframes every targetSeconds or so, fixed slices if the file has no sync samples to cut at
+    static SegmentIndex keyframeAligned(long fileSize, Mp4Index media, double targetSeconds, int segmentSize) {
+        if (media == null || media.getKeyframeCount() == 0 || segmentSize <= 0) {
+            return fixed(fileSize, segmentSize, media);
+        }
+        long maxBytes = (long) segmentSize * MAX_SEGMENT_SIZES;
+        long[] starts = new long[16];
+        int count = 1; // starts[0] = 0
+        double cutTime = Double.NEGATIVE_INFINITY; // segment 0 ends at the first keyframe, whatever its time
+        for (int keyframe = 0; keyframe < media.getKeyframeCount(); keyframe++) {
+            long offset = media.getKeyframeOffset(keyframe);
+            double time = media.getKeyframeTime(keyframe);
+            if (offset <= starts[count - 1] || offset >= fileSize || time < cutTime + targetSeconds) {
+                continue;
+            }
+            // no keyframe soon enough: the segment is split at the size limit so it still fits the cache
+            while (offset - starts[count - 1] > maxBytes) {
+                long split = starts[count - 1] + maxBytes;
+                starts = add(starts, count++, split);
+            }
+            starts = add(starts, count++, offset);
+            cutTime = time;
+        }
+        while (fileSize - starts[count - 1] > maxBytes) {
+            long split = starts[count - 1] + maxBytes;
+            starts = add(starts, count++, split);
+        }
+        return new SegmentIndex(fileSize, segmentSize, Arrays.copyOf(starts, count), media);
+    }
+
+    private static long[] add(long[] starts, int count, long start) {
+        long[] grown = count < starts.length ? starts : Arrays.copyOf(starts, starts.length * 2);
+        grown[count] = start;
+        return grown;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    Mp4Index getMedia() {
+        return media;
+    }
+
+    boolean isKeyframeAligned() {
+        return starts != null;
+    }
+
+    int count() {
+        if (starts != null) {
+            return starts.length;
+        }
+        return (int) Math.max(1, (fileSize + segmentSize - 1) / segmentSize);
+    }
+
+    long start(int segment) {
+        return starts != null ? starts[segment] : (long) segment * segmentSize;
+    }
+
+    long end(int segment) {
+        return segment + 1 < count() ? start(segment + 1) : fileSize;
+    }
+
+    int length(int segment) {
+        return (int) (end(segment) - start(segment));
+    }
+
+    // Media time at the start of the segment, -1 when the file has no sample tables
+    double time(int segment) {
+        return media != null ? media.timeAt(start(segment)) : -1;
+    }
+
+    // Segment holding the byte at offset
+    int segmentAt(long offset) {
+        if (starts == null) {
+            return (int) Math.min(count() - 1, Math.max(0, offset) / segmentSize);
+        }
+        int i = Arrays.binarySearch(starts, offset);
+        return i >= 0 ? i : Math.max(0, -i - 2);
+    }
+
+    double getDuration() {
+        return media != null ? media.getDuration() : 0;
+    }
+
+    long[] starts() {
+        long[] all = new long[count()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = start(i);
+        }
+        return all;
+    }
+
+    double[] times() {
+        double[] all = new double[count()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = time(i);
+        }
+        return all;
+    }
+}
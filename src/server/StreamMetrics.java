@@ -0,0 +1,265 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and distributions shared by every session of the server. Sessions record into them from their event
+// loops without locking, JMX and the STATS command read them from any thread.
+public class StreamMetrics implements StreamMetricsMBean {
+    private final VideoStreamingServer server;
+    private final LongAdder streamsStarted = new LongAdder();
+    private final LongAdder creditStalls = new LongAdder();
+    private final Histogram chunkLatencyMicros = new Histogram(); // chunk queued -> last byte handed to the socket
+    private final Histogram timeToFirstByteMillis = new Histogram(); // STREAM received -> first chunk handed to the socket
+    private final Histogram bufferAheadMillis = new Histogram(); // media sent ahead of the playhead, at each PLAYBACK
+    private final Histogram roundTripMicros = new Histogram(); // PING -> PONG
+    private final OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    StreamMetrics(VideoStreamingServer server) {
+        this.server = server;
+    }
+
+    void streamStarted() {
+        streamsStarted.increment();
+    }
+
+    void creditStall() {
+        creditStalls.increment();
+    }
+
+    void chunkSent(long latencyNanos) {
+        chunkLatencyMicros.record(latencyNanos / 1000);
+    }
+
+    void firstByte(long delayNanos) {
+        timeToFirstByteMillis.record(delayNanos / 1_000_000);
+    }
+
+    void bufferAhead(double seconds) {
+        bufferAheadMillis.record((long) (seconds * 1000));
+    }
+
+    void roundTrip(long nanos) {
+        roundTripMicros.record(nanos / 1000);
+    }
+
+    // Everything at once, for the STATS command
+    Map<String, Double> snapshot() {
+        Map<String, Double> stats = new LinkedHashMap<>();
+        stats.put("sessions", (double) getSessions());
+        stats.put("bytes_sent", (double) getBytesSent());
+        stats.put("egress_bytes_per_second", (double) getEgressBytesPerSecond());
+        stats.put("streams_started", (double) getStreamsStarted());
+        stats.put("credit_stalls", (double) getCreditStalls());
+        stats.put("chunk_latency_p50_us", (double) getChunkLatencyP50Micros());
+        stats.put("chunk_latency_p99_us", (double) getChunkLatencyP99Micros());
+        stats.put("time_to_first_byte_p50_ms", (double) getTimeToFirstByteP50Millis());
+        stats.put("time_to_first_byte_p99_ms", (double) getTimeToFirstByteP99Millis());
+        stats.put("buffer_ahead_p10_s", getBufferAheadP10Seconds());
+        stats.put("buffer_ahead_p50_s", getBufferAheadP50Seconds());
+        stats.put("rtt_p50_us", (double) getRoundTripP50Micros());
+        stats.put("rtt_p99_us", (double) getRoundTripP99Micros());
+        stats.put("egress_rate_limit", (double) getEgressRateLimit());
+        stats.put("egress_deferrals", (double) getEgressDeferrals());
+        stats.put("egress_throttles", (double) getEgressThrottles());
+        stats.put("egress_urgent_grants", (double) getEgressUrgentGrants());
+        stats.put("egress_waiting_sessions", (double) getEgressWaitingSessions());
+        stats.put("egress_wait_p50_us", (double) getEgressWaitP50Micros());
+        stats.put("egress_wait_p99_us", (double) getEgressWaitP99Micros());
+        stats.put("admitted_streams", (double) getAdmittedStreams());
+        stats.put("admission_queue", (double) getAdmissionQueue());
+        stats.put("admissions", (double) getAdmissions());
+        stats.put("admissions_queued", (double) getAdmissionsQueued());
+        stats.put("admissions_refused", (double) getAdmissionsRefused());
+        stats.put("segment_cache_hits", (double) getSegmentCacheHits());
+        stats.put("segment_cache_misses", (double) getSegmentCacheMisses());
+        stats.put("segment_cache_used_bytes", (double) getSegmentCacheUsedBytes());
+        stats.put("segment_cache_evictions", (double) getSegmentCacheEvictions());
+        stats.put("process_cpu_load", getProcessCpuLoad());
+        stats.put("heap_used_bytes", (double) getHeapUsedBytes());
+        stats.put("threads", (double) getThreads());
+        return stats;
+    }
+
+    @Override
+    public int getSessions() {
+        return server.getSessionCount();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return server.getEgressBytes();
+    }
+
+    @Override
+    public long getEgressBytesPerSecond() {
+        return server.getEgressRate();
+    }
+
+    @Override
+    public long getStreamsStarted() {
+        return streamsStarted.sum();
+    }
+
+    @Override
+    public long getCreditStalls() {
+        return creditStalls.sum();
+    }
+
+    @Override
+    public long getChunkLatencyP50Micros() {
+        return chunkLatencyMicros.percentile(0.5);
+    }
+
+    @Override
+    public long getChunkLatencyP99Micros() {
+        return chunkLatencyMicros.percentile(0.99);
+    }
+
+    @Override
+    public long getTimeToFirstByteP50Millis() {
+        return timeToFirstByteMillis.percentile(0.5);
+    }
+
+    @Override
+    public long getTimeToFirstByteP99Millis() {
+        return timeToFirstByteMillis.percentile(0.99);
+    }
+
+    @Override
+    public double getBufferAheadP50Seconds() {
+        return bufferAheadMillis.percentile(0.5) / 1000.0;
+    }
+
+    // The low end matters most: viewers close to running dry
+    @Override
+    public double getBufferAheadP10Seconds() {
+        return bufferAheadMillis.percentile(0.1) / 1000.0;
+    }
+
+    @Override
+    public long getRoundTripP50Micros() {
+        return roundTripMicros.percentile(0.5);
+    }
+
+    @Override
+    public long getRoundTripP99Micros() {
+        return roundTripMicros.percentile(0.99);
+    }
+
+    @Override
+    public long getEgressRateLimit() {
+        return server.getEgressScheduler().getRateBytes();
+    }
+
+    // Chunks held back because the uplink was taken
+    @Override
+    public long getEgressDeferrals() {
+        return server.getEgressScheduler().getDeferrals();
+    }
+
+    // Chunks held back because their session was over its own rate
+    @Override
+    public long getEgressThrottles() {
+        return server.getEgressScheduler().getThrottles();
+    }
+
+    // Chunks sent with priority to viewers close to running dry
+    @Override
+    public long getEgressUrgentGrants() {
+        return server.getEgressScheduler().getUrgentGrants();
+    }
+
+    @Override
+    public int getEgressWaitingSessions() {
+        return server.getEgressScheduler().getWaitingSessions();
+    }
+
+    @Override
+    public long getEgressWaitP50Micros() {
+        return server.getEgressScheduler().getWaitMicros().percentile(0.5);
+    }
+
+    @Override
+    public long getEgressWaitP99Micros() {
+        return server.getEgressScheduler().getWaitMicros().percentile(0.99);
+    }
+
+    // Streams holding one of the places admission control hands out
+    @Override
+    public int getAdmittedStreams() {
+        return server.getAdmissionControl().getStreams();
+    }
+
+    @Override
+    public int getAdmissionQueue() {
+        return server.getAdmissionControl().getQueued();
+    }
+
+    @Override
+    public long getAdmissions() {
+        return server.getAdmissionControl().getAdmitted();
+    }
+
+    // STREAM requests that had to wait for a place, admitted afterwards or not
+    @Override
+    public long getAdmissionsQueued() {
+        return server.getAdmissionControl().getQueuedTotal();
+    }
+
+    // Answered with BUSY
+    @Override
+    public long getAdmissionsRefused() {
+        return server.getAdmissionControl().getRefused();
+    }
+
+    // Segments found in the cache, or read from disk, when a session moved on to them
+    @Override
+    public long getSegmentCacheHits() {
+        return server.getSegmentCache().getHits();
+    }
+
+    @Override
+    public long getSegmentCacheMisses() {
+        return server.getSegmentCache().getMisses();
+    }
+
+    @Override
+    public long getSegmentCacheUsedBytes() {
+        return server.getSegmentCache().getUsedBytes();
+    }
+
+    // Segments dropped to stay within the budget: steadily growing means the budget is short of the working set
+    @Override
+    public long getSegmentCacheEvictions() {
+        return server.getSegmentCache().getEvictions();
+    }
+
+    // Share of the machine's CPUs used by the server, between 0 and 1 (negative when the platform cannot tell)
+    @Override
+    public double getProcessCpuLoad() {
+        return system instanceof com.sun.management.OperatingSystemMXBean os ? os.getProcessCpuLoad() : -1;
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public int getThreads() {
+        return threads.getThreadCount();
+    }
+
+    @Override
+    public String[] sessionStats() {
+        return server.getSessions().stream().map(ClientSession::toString).toArray(String[]::new);
+    }
+}
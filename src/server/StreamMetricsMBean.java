@@ -0,0 +1,71 @@
+package server;
+
+// Server-wide streaming numbers as seen from JConsole or any JMX client, times in the unit their name ends with
+public interface StreamMetricsMBean {
+    int getSessions();
+
+    long getBytesSent();
+
+    long getEgressBytesPerSecond();
+
+    long getStreamsStarted();
+
+    long getCreditStalls();
+
+    long getChunkLatencyP50Micros();
+
+    long getChunkLatencyP99Micros();
+
+    long getTimeToFirstByteP50Millis();
+
+    long getTimeToFirstByteP99Millis();
+
+    double getBufferAheadP50Seconds();
+
+    double getBufferAheadP10Seconds();
+
+    long getRoundTripP50Micros();
+
+    long getRoundTripP99Micros();
+
+    long getEgressRateLimit();
+
+    long getEgressDeferrals();
+
+    long getEgressThrottles();
+
+    long getEgressUrgentGrants();
+
+    int getEgressWaitingSessions();
+
+    long getEgressWaitP50Micros();
+
+    long getEgressWaitP99Micros();
+
+    int getAdmittedStreams();
+
+    int getAdmissionQueue();
+
+    long getAdmissions();
+
+    long getAdmissionsQueued();
+
+    long getAdmissionsRefused();
+
+    long getSegmentCacheHits();
+
+    long getSegmentCacheMisses();
+
+    long getSegmentCacheUsedBytes();
+
+    long getSegmentCacheEvictions();
+
+    double getProcessCpuLoad();
+
+    long getHeapUsedBytes();
+
+    int getThreads();
+
+    // One line per connected session
+    String[] sessionStats();
+}
@@ -0,0 +1,141 @@
+package server;
+
+import inc.Log;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One selector thread multiplexing many client sessions.
+// A session is only ever touched from the thread of the loop it is registered on, other threads hand work over with execute().
+class StreamingEventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(); // loop thread only
+    private volatile boolean running = true;
+    private Thread thread;
+    private long timerSequence = 0;
+
+    StreamingEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    // Runs the task on the loop thread after the given delay
+    void schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() + delayMillis * 1_000_000L;
+        execute(() -> timers.add(new Timer(deadline, timerSequence++, task)));
+    }
+
+    SelectionKey register(SelectableChannel channel, ClientSession session) throws ClosedChannelException {
+        return channel.register(selector, SelectionKey.OP_READ, session);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long timeout = nextTimerDelay();
+                if (!tasks.isEmpty() || timeout == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout < 0 ? 0 : timeout);
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    ((ClientSession) key.attachment()).onReady(key);
+                }
+
+                runTasks();
+                runTimers();
+            } catch (IOException e) {
+                Log.error(name + " select failed", e);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((ClientSession) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.debug("Could not close the selector of " + name + ": " + e.getMessage());
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            run(task);
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            run(timers.poll().task);
+        }
+    }
+
+    // a failing task must not take the whole loop (and every session on it) down
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.error("Task failed on " + name, e);
+        }
+    }
+
+    // milliseconds until the next timer, 0 if one is due, -1 if there is none
+    private long nextTimerDelay() {
+        if (timers.isEmpty()) {
+            return -1;
+        }
+        long delay = timers.peek().deadline - System.nanoTime();
+        return delay <= 0 ? 0 : Math.max(1, delay / 1_000_000L);
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final long sequence;
+        private final Runnable task;
+
+        private Timer(long deadline, long sequence, Runnable task) {
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            int byDeadline = Long.compare(deadline - other.deadline, 0);
+            return byDeadline != 0 ? byDeadline : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -17,255 +17,270 @@ javafx.graphics/com.sun.javafx.sg.prism=ALL-UNNAMED
 */
 package server;
 
-import model.VideoMetadata;
 import inc.CSVReader;
+import inc.Log;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Paths;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collection;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class VideoStreamingServer {
     private int port;
-    private int chunk_size;
+    private int chunk_size; // starting chunk size, each session then adapts it to its link
+    private int min_chunk_size = 1024;
+    private int max_chunk_size = 256 * 1024;
     private int max_buffer_seconds; // Maximum buffer ahead of playback
+    private long initial_credit_bytes = 4 * 1024 * 1024; // sent before the client reports its playback position
     private String media_type;
+    private String media_root = "etc/media"; // video_directories and replica_directory are relative to it
     private String[] video_directories;
+    private boolean zero_copy; // send chunk payloads with FileChannel.transferTo instead of copying them through the heap
+    private int event_loops = Runtime.getRuntime().availableProcessors(); // selector threads sharing the sessions
+    private int worker_threads = 4; // pool for blocking work (segment reads into the cache, MP4 indexing)
+    private int worker_queue_size = 256; // pending worker tasks before new requests are refused
+    private long cache_budget_bytes = 0; // off-heap memory for the shared segment cache, 0 disables it
+    private int segment_size = 1024 * 1024; // bytes per cached segment
+    private int index_cache_entries = 1024; // parsed MP4 sample tables kept for pacing and seeks
+    // segments cut at the video's keyframes every segment_seconds or so, instead of every segment_size bytes
+    private boolean keyframe_segments = false;
+    private double segment_seconds = 4;
+    // set on a child node: the central server it registers with
+    private String central_host;
+    private int central_port = 8888;
+    private String node_host = "localhost"; // host clients are redirected to, and nodes copy hot videos from
+    private String replica_directory = "replicas"; // under the media root, copies of hot videos kept by a child node
+    // on the central server: the share of the catalog counted as hot, and the number of nodes each hot title is copied to
+    private double hot_fraction = 0.01;
+    private int hot_replicas = 2;
+    private long popularity_half_life_seconds = 300;
+    // egress scheduling: server-wide and per-session caps in bytes per second (0 for none), and the viewers served first
+    private long egress_rate_bytes = 0;
+    private long session_rate_bytes = 0;
+    private double low_buffer_seconds = 5;
+    private double low_buffer_weight = 4; // share of a viewer below low_buffer_seconds, relative to the others
+    // admission of new streams: past any of these limits a STREAM waits admission_queue_millis for a place, then gets BUSY
+    private int max_streams = 0; // 0 for no limit
+    private double admission_egress_fraction = 0.95; // of egress_rate_bytes, when egress is capped
+    private double max_file_descriptor_fraction = 0.9; // of the process's file descriptor limit
+    private int max_pending_segment_loads = 64; // segment cache misses waiting for the disk, 0 for no limit
+    private long admission_queue_millis = 2000;
+    private int max_queued_streams = 100;
+    private int busy_retry_millis = 5000; // delay clients are told to wait before asking again, plus up to half of it
+    private String log_level = "INFO"; // DEBUG also logs every command and a sample of the chunks
 
     private final CentralVideoServer centralServer;
-    // Map to track client-specific streaming state
-    private final ConcurrentHashMap<Socket, ClientStreamingState> clientStreamingStates = new ConcurrentHashMap<>();
+    // Live sessions, each one owned by one event loop
+    private final ConcurrentHashMap<SocketChannel, ClientSession> sessions = new ConcurrentHashMap<>();
+    private StreamingEventLoop[] loops;
+    private final ExecutorService workers;
+    private final SegmentCache segmentCache;
+    private final IndexCache indexCache;
+    private final NodeRegistry nodeRegistry; // child nodes registered with this server
+    private final Popularity popularity;
+    private final EgressScheduler egressScheduler;
+    private final AdmissionControl admissionControl;
+    private final StreamMetrics metrics = new StreamMetrics(this);
+    private final ReplicaStore replicaStore; // null unless this server is a child node
+    private final AtomicLong egressBytes = new AtomicLong();
+    private long egressSampledBytes = 0;
+    private long egressSampledAt = System.nanoTime();
+    private long egressRate = 0;
 
     public VideoStreamingServer(String configPath) {
-        centralServer = new CentralVideoServer();
-
         CSVReader.importConfig(configPath, this);
-
-        for (String directory: video_directories) {
-            centralServer.addDirectoryPath(directory, media_type);
-        }
+        Log.setLevel(log_level);
+
+        centralServer = new CentralVideoServer(Paths.get(media_root));
+        centralServer.addDirectoryPaths(video_directories, media_type);
+        // connected clients follow the storage directories as files come and go, renditions grouped by title
+        centralServer.addTitleListener((added, removed) -> {
+            for (ClientSession session : sessions.values()) {
+                session.sendCatalogDelta(added, removed);
+            }
+        });
+
+        workers = new ThreadPoolExecutor(worker_threads, worker_threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(worker_queue_size));
+        segmentCache = new SegmentCache(cache_budget_bytes, segment_size, workers);
+        indexCache = new IndexCache(index_cache_entries, workers, keyframe_segments, segment_seconds, segment_size);
+        nodeRegistry = new NodeRegistry(centralServer);
+        popularity = new Popularity(popularity_half_life_seconds);
+        egressScheduler = new EgressScheduler(egress_rate_bytes, session_rate_bytes, low_buffer_seconds, low_buffer_weight);
+        admissionControl = new AdmissionControl(this, max_streams, admission_egress_fraction, max_file_descriptor_fraction,
+                max_pending_segment_loads, admission_queue_millis, max_queued_streams, busy_retry_millis);
+        replicaStore = central_host != null ? new ReplicaStore(centralServer, centralServer.getMediaRoot().resolve(replica_directory)) : null;
     }
 
     public void start() {
+        loops = new StreamingEventLoop[Math.max(1, event_loops)];
         try (
-                ServerSocket serverSocket = new ServerSocket(port);
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
         ) {
-            System.out.println("Video Streaming Server started on port " + port);
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new StreamingEventLoop("streaming-loop-" + i);
+                loops[i].start();
+            }
+            serverChannel.bind(new InetSocketAddress(port));
+            Log.info("Video Streaming Server started on port " + port + " with " + loops.length + " event loops" + (zero_copy ? " (zero-copy)" : "")
+                    + (segmentCache.isEnabled() ? ", " + cache_budget_bytes + " bytes of segment cache" : "")
+                    + (egress_rate_bytes > 0 ? ", egress capped at " + egress_rate_bytes + " bytes/s" : ""));
+            egressScheduler.start();
+            registerMetrics();
+            if (central_host != null) {
+                new CentralLink(this, central_host, central_port, node_host, port).start();
+            }
+            new Replicator(this, popularity, hot_fraction, hot_replicas, node_host, port).start();
 
+            int next = 0;
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
-
-                // Handle client connection in a new thread
-                Boolean clientStreamingState = true;
-                new Thread(() -> handleClientConnection(clientSocket, media_type, clientStreamingState)).start();
+                SocketChannel clientChannel = serverChannel.accept();
+                Log.debug("Client connected: " + clientChannel.getRemoteAddress());
+                clientChannel.configureBlocking(false);
+
+                // Hand the connection over to an event loop, round robin
+                StreamingEventLoop loop = loops[next++ % loops.length];
+                ClientSession session = new ClientSession(this, loop, clientChannel);
+                sessions.put(clientChannel, session);
+                loop.execute(session::open);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Server socket failed", e);
+        } finally {
+            shutdown();
         }
     }
 
-    private void handleClientConnection(Socket clientSocket, String media_type, Boolean clientStreamingState) {
-        // Create a streaming state for this client
-        ClientStreamingState streamingState = new ClientStreamingState();
-        clientStreamingStates.put(clientSocket, streamingState);
-
-        try (
-                ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-        ) {
-            // Send available videos to the client
-            List<VideoMetadata> availableVideos = centralServer.getAllAvailableVideos();
-            out.writeObject(availableVideos);
-            out.flush();
-
-            // Wait for video selection or other commands
-            while (true) {
-                String command = (String) in.readObject();
-                System.out.println(command);
-                if ("EXIT".equals(command)) {
-                    clientStreamingState = in.readBoolean();
-                    System.out.println(clientStreamingState);
-                    if (!clientStreamingState) {
-                        break;
-                    } else {
-                        streamingState.reset();
-                        continue;
-                    }
-                }
-
-                if (command.startsWith("STREAM:")) {
-                    String videoId = command.substring(7);
-                    streamVideoToClient(videoId, out, in, clientSocket, media_type);
-                } else if (command.startsWith("PLAYBACK_TIME:")) {
-                    // Update client's current playback time
-                    double playbackTime = Double.parseDouble(command.substring(14));
-                    double totalTime = in.readDouble();
-                    streamingState.setCurrentPlaybackTime(playbackTime);
-                    streamingState.setTotalTime(totalTime);
+    public void shutdown() {
+        if (loops != null) {
+            for (StreamingEventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
                 }
             }
-        } catch (IOException | ClassNotFoundException e) {
-            System.out.println("aborted");
-        } finally {
-            clientStreamingStates.remove(clientSocket);
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
+        workers.shutdownNow();
+        Log.info(segmentCache.toString());
     }
 
-    private void streamVideoToClient(String videoId, ObjectOutputStream out, ObjectInputStream in, Socket clientSocket, String media_type) {
-        VideoMetadata video = centralServer.getAllAvailableVideos().stream()
-                .filter(v -> v.getId().equals(videoId))
-                .findFirst()
-                .orElse(null);
-
-        if (video == null) {
-            try {
-                out.writeObject("VIDEO_ERROR");
-                out.flush();
-                return;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return;
-            }
+    // Published as server:type=StreamMetrics,port=<port> for JConsole and other JMX clients
+    private void registerMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("server:type=StreamMetrics,port=" + port));
+        } catch (JMException e) {
+            Log.warn("Could not register the metrics with JMX: " + e.getMessage());
         }
+    }
 
-        ClientStreamingState streamingState = clientStreamingStates.get(clientSocket);
+    void sessionClosed(ClientSession session) {
+        sessions.remove(session.getChannel());
+    }
 
-        try (
-                BufferedInputStream fileInputStream = new BufferedInputStream(new FileInputStream(video.getFilePath()));
-        ) {
-            // Send video metadata first
-            out.writeObject("VIDEO_START");
-            out.writeObject(media_type);
-            out.writeObject(videoId);
-            long fileSize = Files.size(Paths.get(video.getFilePath()));
-            out.writeLong(fileSize);
-
-            // Stream video in chunks with buffer control
-            byte[] buffer = new byte[chunk_size];
-            int bytesRead;
-            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                // Wait if buffer is too large (large distance between playback and chunks)
-                while (streamingState.getBytesWritten() > (streamingState.getCurrentPlaybackTime() + max_buffer_seconds) * (fileSize / streamingState.getTotalTime())) {
-                    out.writeObject("WAITING");
-                    out.flush();
-                    System.out.println("sending waiting");
-
-                    try {
-                        updateClientStreamingState(streamingState, out, in);
-                    } catch (IOException e) {
-                        break;
-                    }
-
-                    Thread.sleep(1000); // Wait and check again
-                }
+    NodeRegistry getNodeRegistry() {
+        return nodeRegistry;
+    }
 
+    Popularity getPopularity() {
+        return popularity;
+    }
 
-                if (streamingState.getLastPlaybackRequest() >= 100) {
-                    out.writeObject("GET_PLAYBACK");
-                    System.out.println(streamingState.getCurrentPlaybackTime() +";"+ streamingState.getTotalTime());
-                    try {
-                        updateClientStreamingState(streamingState, out, in);
-                    } catch (IOException e) {
-                        break;
-                    }
-                    streamingState.setLastPlaybackRequest(0);
-                }
+    ReplicaStore getReplicaStore() {
+        return replicaStore;
+    }
+
+    EgressScheduler getEgressScheduler() {
+        return egressScheduler;
+    }
 
-                // sending chunks if not waiting
-                System.out.println("sending data");
-                out.writeObject("VIDEO_CHUNK");
-                out.writeInt(bytesRead);
-                out.write(buffer, 0, bytesRead);
-                out.flush();
-                streamingState.incrementLastPlaybackRequest();
+    AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
 
-                // Update bytes written
-                streamingState.incrementBytesWritten(bytesRead);
+    StreamMetrics getMetrics() {
+        return metrics;
+    }
 
-            }
-            System.out.println("vita");
-
-            // Signal end of video stream
-            out.writeObject("VIDEO_END");
-            out.flush();
-        } catch (IOException | InterruptedException e) { // stream error case
-            try {
-                out.writeObject("VIDEO_ERROR");
-                out.flush();
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-            e.printStackTrace();
-        }
+    Collection<ClientSession> getSessions() {
+        return sessions.values();
     }
 
-    public void updateClientStreamingState(ClientStreamingState streamingState, ObjectOutputStream out, ObjectInputStream in) throws IOException {
-        double playbackTime = in.readDouble();
-        double totalTime = in.readDouble();
-        streamingState.setCurrentPlaybackTime(playbackTime);
-        streamingState.setTotalTime(totalTime);
+    long getEgressBytes() {
+        return egressBytes.get();
     }
 
-    // Inner class to track client-specific streaming state
-    private static class ClientStreamingState {
-        private volatile long bytesWritten = 0; // amount of data written to the file
-        private volatile double currentPlaybackTime = 0;
-        private volatile double totalTime = 0;
-        private volatile int lastPlaybackRequest = 0;
+    int getSessionCount() {
+        return sessions.size();
+    }
 
-        public synchronized void incrementBytesWritten(int bytes) {
-            bytesWritten += bytes;
-        }
+    void addEgress(long bytes) {
+        egressBytes.addAndGet(bytes);
+    }
 
-        public synchronized void incrementLastPlaybackRequest() {
-            lastPlaybackRequest++;
+    // Bytes per second sent to clients, averaged since the previous sample (taken at most once a second)
+    synchronized long getEgressRate() {
+        long now = System.nanoTime();
+        if (now - egressSampledAt >= 1_000_000_000L) {
+            long bytes = egressBytes.get();
+            egressRate = (long) ((bytes - egressSampledBytes) * 1e9 / (now - egressSampledAt));
+            egressSampledBytes = bytes;
+            egressSampledAt = now;
         }
+        return egressRate;
+    }
 
-        public synchronized long getBytesWritten() {
-            return bytesWritten;
-        }
+    // Load of this server in the terms of RemoteNode.getLoad, to compare it with the nodes holding the same video
+    double getLoad() {
+        return RemoteNode.load(getSessionCount(), getEgressRate());
+    }
 
-        public synchronized void setCurrentPlaybackTime(double time) {
-            this.currentPlaybackTime = time;
-        }
+    CentralVideoServer getCentralServer() {
+        return centralServer;
+    }
 
-        public synchronized double getCurrentPlaybackTime() {
-            return currentPlaybackTime;
-        }
+    SegmentCache getSegmentCache() {
+        return segmentCache;
+    }
 
-        public synchronized double getTotalTime() {
-            return totalTime;
-        }
+    IndexCache getIndexCache() {
+        return indexCache;
+    }
 
-        public synchronized void setTotalTime(double totalTime) {
-            this.totalTime = totalTime;
-        }
+    int getChunkSize() {
+        return chunk_size;
+    }
 
-        public synchronized int getLastPlaybackRequest() {
-            return lastPlaybackRequest;
-        }
+    int getMinChunkSize() {
+        return min_chunk_size;
+    }
 
-        public synchronized void setLastPlaybackRequest(int lastPlaybackRequest) {
-            this.lastPlaybackRequest = lastPlaybackRequest;
-        }
+    int getMaxChunkSize() {
+        return max_chunk_size;
+    }
 
-        public synchronized void reset() {
-            bytesWritten = 0;
-            currentPlaybackTime = 0;
-            totalTime = 0;
-            lastPlaybackRequest = 0;
-        }
+    int getMaxBufferSeconds() {
+        return max_buffer_seconds;
+    }
+
+    long getInitialCreditBytes() {
+        return initial_credit_bytes;
+    }
+
+    String getMediaType() {
+        return media_type;
+    }
+
+    boolean isZeroCopy() {
+        return zero_copy;
     }
 
     public static void main(String[] args) {
-        new VideoStreamingServer("etc/config/server.csv").start();
+        // a child node runs with its own configuration: java server.VideoStreamingServer etc/config/node.csv
+        new VideoStreamingServer(args.length > 0 ? args[0] : "etc/config/server.csv").start();
     }
-}
\ No newline at end of file
+}